@@ -0,0 +1,167 @@
+package no.ssb.dapla.secret;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import io.helidon.config.Config;
+import io.helidon.config.ConfigSources;
+import io.helidon.metrics.RegistryFactory;
+import no.ssb.dapla.auth.dataset.protobuf.AccessCheckRequest;
+import no.ssb.dapla.auth.dataset.protobuf.AccessCheckResponse;
+import no.ssb.dapla.auth.dataset.protobuf.AuthServiceGrpc;
+import no.ssb.dapla.catalog.protobuf.CatalogServiceGrpc;
+import no.ssb.dapla.catalog.protobuf.Dataset;
+import no.ssb.dapla.catalog.protobuf.GetByNameDatasetRequest;
+import no.ssb.dapla.catalog.protobuf.GetByNameDatasetResponse;
+import no.ssb.dapla.catalog.protobuf.PseudoConfig;
+import no.ssb.dapla.catalog.protobuf.SecretPseudoConfigItem;
+import no.ssb.dapla.secret.service.protobuf.GetSecretsRequest;
+import no.ssb.dapla.secret.service.protobuf.GetSecretsResponse;
+import no.ssb.dapla.secret.service.protobuf.Secret;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * The full getSecrets flow of {@link SecretServiceGrpc} against in-process stub catalog and auth services and a
+ * repository that serves the secrets from memory, with and without the catalog and access caches.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class GetSecretsBenchmark {
+
+    static final String DATASET_PATH = "/directory/a-dataset";
+
+    @Param({"true", "false"})
+    boolean cached;
+
+    @Param({"1", "50"})
+    int secrets;
+
+    Server server;
+    ManagedChannel channel;
+    SecretKeyPool keyPool;
+    SecretServiceGrpc service;
+    GetSecretsRequest request;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Dataset dataset = Dataset.newBuilder()
+                .setState(Dataset.DatasetState.INPUT)
+                .setValuation(Dataset.Valuation.INTERNAL)
+                .setPseudoConfig(PseudoConfig.newBuilder().addAllSecrets(IntStream.range(0, secrets)
+                        .mapToObj(i -> SecretPseudoConfigItem.newBuilder().setId("secret-" + i).build())
+                        .collect(Collectors.toList())))
+                .build();
+        Map<String, Secret> storedSecrets = IntStream.range(0, secrets)
+                .mapToObj(i -> SecretGenerator.generate("secret-" + i, "AES256"))
+                .collect(Collectors.toMap(Secret::getId, secret -> secret));
+
+        String serverName = InProcessServerBuilder.generateName();
+        server = InProcessServerBuilder.forName(serverName)
+                .directExecutor()
+                .addService(new AuthServiceGrpc.AuthServiceImplBase() {
+                    @Override
+                    public void hasAccess(AccessCheckRequest request, StreamObserver<AccessCheckResponse> responseObserver) {
+                        responseObserver.onNext(AccessCheckResponse.newBuilder().setAllowed(true).build());
+                        responseObserver.onCompleted();
+                    }
+                })
+                .addService(new CatalogServiceGrpc.CatalogServiceImplBase() {
+                    @Override
+                    public void getByName(GetByNameDatasetRequest request, StreamObserver<GetByNameDatasetResponse> responseObserver) {
+                        responseObserver.onNext(GetByNameDatasetResponse.newBuilder().setDataset(dataset).build());
+                        responseObserver.onCompleted();
+                    }
+                })
+                .build()
+                .start();
+        channel = InProcessChannelBuilder.forName(serverName).directExecutor().build();
+
+        MetricRegistry metricRegistry = RegistryFactory.getInstance().getRegistry(MetricRegistry.Type.APPLICATION);
+        StageMetrics stageMetrics = new StageMetrics(metricRegistry);
+        SecretRepository repository = new SecretRepository(null, stageMetrics) {
+            @Override
+            public CompletableFuture<Set<Secret>> getSecrets(String... ids) {
+                return CompletableFuture.completedFuture(Arrays.stream(ids)
+                        .map(storedSecrets::get)
+                        .collect(Collectors.toSet()));
+            }
+        };
+
+        Config cacheConfig = cached ? Config.empty() : Config.create(ConfigSources.create(Map.of(
+                "ttl-millis", "0",
+                "stale-millis", "0",
+                "not-found-ttl-millis", "0",
+                "positive-ttl-millis", "0",
+                "negative-ttl-millis", "0"
+        )));
+        keyPool = new SecretKeyPool(Config.empty(), metricRegistry);
+        service = new SecretServiceGrpc(
+                repository,
+                AuthServiceGrpc.newFutureStub(channel),
+                CatalogServiceGrpc.newFutureStub(channel),
+                new AccessDecisionCache(cacheConfig),
+                new CatalogLookupCache<>(cacheConfig),
+                new CatalogLookupCache<>(cacheConfig),
+                keyPool,
+                stageMetrics,
+                new HedgedCalls(Config.empty(), stageMetrics, metricRegistry)
+        );
+        request = GetSecretsRequest.newBuilder().setDatasetPath(DATASET_PATH).build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        keyPool.close();
+        channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public GetSecretsResponse getSecrets() {
+        CompletableFuture<GetSecretsResponse> future = new CompletableFuture<>();
+        service.getSecrets(request, new StreamObserver<>() {
+            @Override
+            public void onNext(GetSecretsResponse value) {
+                future.complete(value);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                future.completeExceptionally(t);
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        });
+        return future.join();
+    }
+}
@@ -0,0 +1,56 @@
+package no.ssb.dapla.secret;
+
+import no.ssb.dapla.secret.service.protobuf.Secret;
+import no.ssb.dapla.secret.service.protobuf.SecretRef;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Set difference between the requested secret refs and the existing secrets in createOrGetSecrets, with half of the
+ * requested secrets already existing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class MissingSecretRefsBenchmark {
+
+    @Param({"10", "100", "1000"})
+    int secrets;
+
+    List<SecretRef> secretRefs;
+    Set<Secret> existingSecrets;
+
+    @Setup
+    public void setup() {
+        secretRefs = IntStream.range(0, secrets)
+                .mapToObj(i -> SecretRef.newBuilder().setId("secret-" + i).setType("AES256").build())
+                .collect(Collectors.toList());
+        existingSecrets = secretRefs.stream()
+                .limit(secrets / 2)
+                .map(secretRef -> SecretGenerator.generate(secretRef.getId(), secretRef.getType()))
+                .collect(Collectors.toSet());
+    }
+
+    @Benchmark
+    public List<SecretRef> missingSecretRefs() {
+        return SecretServiceGrpc.missingSecretRefs(secretRefs, existingSecrets);
+    }
+}
@@ -0,0 +1,71 @@
+package no.ssb.dapla.secret;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.sqlclient.Tuple;
+import no.ssb.dapla.secret.service.protobuf.Secret;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decryption of a stored secret row with the per-thread cipher used by {@link SecretEncryption}, compared with
+ * looking up a new cipher for every row.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@Threads(4)
+public class SecretDecryptBenchmark {
+
+    SecretKey dataKey;
+    SecretEncryption encryption;
+    Tuple row;
+    byte[] content;
+    byte[] associatedData;
+
+    @Setup
+    public void setup() {
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        dataKey = new SecretKeySpec(key, "AES");
+        encryption = new SecretEncryption(Map.of(1, dataKey), 1);
+        Secret secret = SecretGenerator.generate("secret-id", "AES256");
+        content = encryption.encrypt(secret.getId(), secret.getType(), secret.getContent().toByteArray());
+        row = Tuple.of(secret.getId(), secret.getType(), Buffer.buffer(content), 1);
+        associatedData = (secret.getId() + '\0' + secret.getType()).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public Secret decodeWithThreadLocalCipher() {
+        return SecretRowCodec.decode(row, encryption);
+    }
+
+    @Benchmark
+    public byte[] decryptWithNewCipher() throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(SecretEncryption.TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, dataKey, new GCMParameterSpec(SecretEncryption.TAG_LENGTH_BITS, content, 0, SecretEncryption.IV_LENGTH));
+        cipher.updateAAD(associatedData);
+        return cipher.doFinal(content, SecretEncryption.IV_LENGTH, content.length - SecretEncryption.IV_LENGTH);
+    }
+}
@@ -0,0 +1,46 @@
+package no.ssb.dapla.secret;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.sqlclient.Tuple;
+import no.ssb.dapla.secret.service.protobuf.Secret;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class SecretRowCodecBenchmark {
+
+    Secret secret;
+    Tuple row;
+    SecretEncryption plaintext = SecretEncryption.disabled();
+
+    @Setup
+    public void setup() {
+        secret = SecretGenerator.generate("secret-id", "AES256");
+        row = Tuple.of("secret-id", "AES256", Buffer.buffer(secret.getContent().toByteArray()), null);
+    }
+
+    @Benchmark
+    public Tuple encode() {
+        return SecretRowCodec.encode(secret, plaintext);
+    }
+
+    @Benchmark
+    public Secret decode() {
+        return SecretRowCodec.decode(row, plaintext);
+    }
+}
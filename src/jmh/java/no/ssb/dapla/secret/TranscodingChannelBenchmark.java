@@ -0,0 +1,102 @@
+package no.ssb.dapla.secret;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import io.grpc.ServerInterceptors;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import no.ssb.dapla.secret.service.protobuf.GetSecretsRequest;
+import no.ssb.dapla.secret.service.protobuf.GetSecretsResponse;
+import no.ssb.dapla.secret.service.protobuf.Secret;
+import no.ssb.dapla.secret.service.protobuf.SecretServiceGrpc.SecretServiceBlockingStub;
+import no.ssb.dapla.secret.service.protobuf.SecretServiceGrpc.SecretServiceImplBase;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * The channel behind the /rpc transcoding: the in-process transport used by the application against the loopback TCP
+ * channel it replaced, calling the same service with the same interceptors. The service answers from memory so
+ * that the difference is the transport.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class TranscodingChannelBenchmark {
+
+    @Param({"in-process", "loopback"})
+    String transport;
+
+    @Param({"1", "50"})
+    int secrets;
+
+    Server server;
+    ManagedChannel channel;
+    SecretServiceBlockingStub stub;
+    GetSecretsRequest request;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        List<Secret> storedSecrets = IntStream.range(0, secrets)
+                .mapToObj(i -> SecretGenerator.generate("secret-" + i, "AES256"))
+                .collect(Collectors.toList());
+        SecretServiceImplBase service = new SecretServiceImplBase() {
+            @Override
+            public void getSecrets(GetSecretsRequest request, StreamObserver<GetSecretsResponse> responseObserver) {
+                responseObserver.onNext(GetSecretsResponse.newBuilder().addAllSecrets(storedSecrets).build());
+                responseObserver.onCompleted();
+            }
+        };
+
+        if ("in-process".equals(transport)) {
+            String serverName = InProcessServerBuilder.generateName();
+            server = InProcessServerBuilder.forName(serverName)
+                    .directExecutor()
+                    .addService(ServerInterceptors.intercept(service, new SecretVersionsInterceptor()))
+                    .build()
+                    .start();
+            channel = InProcessChannelBuilder.forName(serverName).directExecutor().build();
+        } else {
+            server = ServerBuilder.forPort(0)
+                    .addService(ServerInterceptors.intercept(service, new SecretVersionsInterceptor()))
+                    .build()
+                    .start();
+            channel = ManagedChannelBuilder.forAddress("localhost", server.getPort()).usePlaintext().build();
+        }
+        stub = no.ssb.dapla.secret.service.protobuf.SecretServiceGrpc.newBlockingStub(channel);
+        request = GetSecretsRequest.newBuilder().setDatasetPath("/directory/a-dataset").build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public GetSecretsResponse getSecrets() {
+        return stub.getSecrets(request);
+    }
+}
@@ -0,0 +1,74 @@
+package no.ssb.dapla.secret;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.helidon.config.Config;
+import no.ssb.dapla.auth.dataset.protobuf.AccessCheckRequest;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Short-lived cache of access decisions keyed by the full access check request, i.e. the user, namespace, state,
+ * valuation and privilege tuple. Allowed and denied decisions have separate time-to-live, failed checks are not
+ * cached, and concurrent lookups of the same key share one in-flight check, which is cancelled if every lookup
+ * waiting for it is cancelled.
+ */
+public class AccessDecisionCache {
+
+    private final Cache<AccessCheckRequest, Decision> cache;
+    private final long positiveTtlNanos;
+    private final long negativeTtlNanos;
+
+    public AccessDecisionCache(Config config) {
+        Duration positiveTtl = Duration.ofMillis(config.get("positive-ttl-millis").asLong().orElse(30000L));
+        Duration negativeTtl = Duration.ofMillis(config.get("negative-ttl-millis").asLong().orElse(5000L));
+        this.positiveTtlNanos = positiveTtl.toNanos();
+        this.negativeTtlNanos = negativeTtl.toNanos();
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(config.get("max-size").asLong().orElse(10000L))
+                .expireAfterWrite(positiveTtl.compareTo(negativeTtl) > 0 ? positiveTtl : negativeTtl)
+                .build();
+    }
+
+    public CompletableFuture<Boolean> get(AccessCheckRequest request, Function<AccessCheckRequest, CompletableFuture<Boolean>> accessCheck) {
+        Decision[] created = new Decision[1];
+        Decision decision = cache.asMap().compute(request, (key, existing) -> {
+            if (existing != null && !existing.isExpired(System.nanoTime()) && existing.tryJoin()) {
+                return existing;
+            }
+            created[0] = new Decision();
+            return created[0];
+        });
+        if (decision == created[0]) {
+            CompletableFuture<Boolean> check;
+            try {
+                check = accessCheck.apply(request);
+            } catch (RuntimeException e) {
+                cache.asMap().remove(request, decision);
+                decision.future.completeExceptionally(e);
+                return decision.view();
+            }
+            decision.attach(check);
+            check.whenComplete((allowed, throwable) -> {
+                if (throwable != null) {
+                    cache.asMap().remove(request, decision);
+                    decision.future.completeExceptionally(throwable);
+                    return;
+                }
+                decision.expiresAt = System.nanoTime() + (allowed ? positiveTtlNanos : negativeTtlNanos);
+                decision.future.complete(allowed);
+            });
+        }
+        return decision.view();
+    }
+
+    static class Decision extends SharedCall<Boolean> {
+        volatile long expiresAt = Long.MAX_VALUE;
+
+        boolean isExpired(long now) {
+            return expiresAt != Long.MAX_VALUE && now - expiresAt > 0;
+        }
+    }
+}
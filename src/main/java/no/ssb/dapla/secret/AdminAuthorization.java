@@ -0,0 +1,48 @@
+package no.ssb.dapla.secret;
+
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import io.helidon.config.Config;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * Restricts services that expose key material in bulk to callers that send the configured admin token as a bearer
+ * token in the authorization header. Every call is denied when no admin token is configured.
+ */
+public class AdminAuthorization implements ServerInterceptor {
+
+    static final Metadata.Key<String> AUTHORIZATION_HEADER = Metadata.Key.of("authorization", Metadata.ASCII_STRING_MARSHALLER);
+
+    private final byte[] expectedAuthorization;
+
+    public AdminAuthorization(Config config) {
+        this.expectedAuthorization = config.get("token").asString()
+                .filter(token -> !token.isBlank())
+                .map(token -> ("Bearer " + token).getBytes(StandardCharsets.UTF_8))
+                .orElse(null);
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+        if (expectedAuthorization == null) {
+            return deny(call, Status.PERMISSION_DENIED.withDescription("No admin token is configured"));
+        }
+        String authorization = headers.get(AUTHORIZATION_HEADER);
+        // constant time comparison, so the token cannot be guessed from response times
+        if (authorization == null || !MessageDigest.isEqual(expectedAuthorization, authorization.getBytes(StandardCharsets.UTF_8))) {
+            return deny(call, Status.UNAUTHENTICATED.withDescription("Missing or invalid admin token"));
+        }
+        return next.startCall(call, headers);
+    }
+
+    private static <ReqT, RespT> ServerCall.Listener<ReqT> deny(ServerCall<ReqT, RespT> call, Status status) {
+        call.close(status, new Metadata());
+        return new ServerCall.Listener<>() {
+        };
+    }
+}
@@ -0,0 +1,318 @@
+package no.ssb.dapla.secret;
+
+import io.grpc.Status;
+import io.grpc.StatusException;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.pgclient.PgPool;
+import io.vertx.sqlclient.Row;
+import io.vertx.sqlclient.RowSet;
+import io.vertx.sqlclient.SqlConnection;
+import io.vertx.sqlclient.SqlResult;
+import io.vertx.sqlclient.Transaction;
+import io.vertx.sqlclient.Tuple;
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.Gauge;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.Timer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.stream.Collector;
+
+/**
+ * Runs queries on connections that are explicitly acquired from the delegate pool, so that connection use, wait queue
+ * depth and acquire time can be measured, and rejects queries with RESOURCE_EXHAUSTED as soon as the wait queue is
+ * full instead of letting them queue until they time out. Up to pipelining-limit independent statements are sent on
+ * each acquired connection without waiting for the responses of the earlier ones, and a connection is given back to
+ * the delegate pool when it has no statements in flight and none are waiting. Connections handed out by
+ * {@link #getConnection(Handler)} and {@link #begin(Handler)} are passed straight through and are not counted, so
+ * they must only be used for short transactions. Anything that holds a connection for longer needs a pool of its own.
+ */
+public class AdmissionControlledPgPool implements PgPool {
+
+    private final PgPool delegate;
+    private final int maxSize;
+    private final int maxWaitQueueSize;
+    private final int pipeliningLimit;
+    private final AtomicInteger admitted = new AtomicInteger();
+    private final Timer acquireTimer;
+    private final Counter rejected;
+
+    // guarded by this
+    private final List<Lease> leases = new ArrayList<>();
+    private final Deque<Operation<?>> waiting = new ArrayDeque<>();
+    private int acquiring;
+    private int inFlight;
+
+    /**
+     * @param name            prefix of the pool's metrics, e.g. pgpool
+     * @param pipeliningLimit the number of statements that may be in flight on one connection, 1 disables pipelining
+     */
+    public AdmissionControlledPgPool(PgPool delegate, String name, int maxSize, int maxWaitQueueSize, int pipeliningLimit, MetricRegistry metricRegistry) {
+        this.delegate = delegate;
+        this.maxSize = maxSize;
+        this.maxWaitQueueSize = maxWaitQueueSize;
+        this.pipeliningLimit = Math.max(1, pipeliningLimit);
+        this.acquireTimer = metricRegistry.timer(name + ".acquire");
+        this.rejected = metricRegistry.counter(name + ".rejected");
+        registerGauge(metricRegistry, name + ".connections.in-use", (Gauge<Integer>) this::connectionsInUse);
+        registerGauge(metricRegistry, name + ".connections.idle", (Gauge<Integer>) () -> Math.max(0, maxSize - connectionsInUse()));
+        registerGauge(metricRegistry, name + ".connections.utilization", (Gauge<Double>) this::utilization);
+        registerGauge(metricRegistry, name + ".statements.in-flight", (Gauge<Integer>) this::statementsInFlight);
+        registerGauge(metricRegistry, name + ".wait-queue.depth", (Gauge<Integer>) this::waitQueueDepth);
+    }
+
+    // the registry is shared by every application built in the jvm, and a gauge cannot be registered twice
+    private static void registerGauge(MetricRegistry metricRegistry, String name, Gauge<?> gauge) {
+        metricRegistry.remove(name);
+        metricRegistry.register(name, gauge);
+    }
+
+    static boolean isRejection(Throwable throwable) {
+        return Status.fromThrowable(throwable).getCode() == Status.Code.RESOURCE_EXHAUSTED;
+    }
+
+    synchronized int connectionsInUse() {
+        return leases.size();
+    }
+
+    synchronized int statementsInFlight() {
+        return inFlight;
+    }
+
+    synchronized int waitQueueDepth() {
+        return waiting.size();
+    }
+
+    /**
+     * @return the share of the statement slots of the whole pool, i.e. max-size times pipelining-limit, in use
+     */
+    synchronized double utilization() {
+        return (double) inFlight / (maxSize * pipeliningLimit);
+    }
+
+    <T> void withConnection(Handler<AsyncResult<T>> handler, BiConsumer<SqlConnection, Handler<AsyncResult<T>>> operation) {
+        if (admitted.incrementAndGet() > maxSize * pipeliningLimit + maxWaitQueueSize) {
+            admitted.decrementAndGet();
+            rejected.inc();
+            handler.handle(Future.failedFuture(new StatusException(Status.RESOURCE_EXHAUSTED.withDescription("Database connection pool wait queue is full"))));
+            return;
+        }
+        Operation<T> op = new Operation<>(handler, operation);
+        Lease lease;
+        boolean acquire = false;
+        synchronized (this) {
+            lease = leastLoadedLease();
+            if (lease != null) {
+                lease.inFlight++;
+                inFlight++;
+            } else {
+                waiting.addLast(op);
+                if (leases.size() + acquiring < maxSize) {
+                    acquiring++;
+                    acquire = true;
+                }
+            }
+        }
+        if (lease != null) {
+            op.run(lease);
+        } else if (acquire) {
+            acquire();
+        }
+    }
+
+    private Lease leastLoadedLease() {
+        Lease leastLoaded = null;
+        for (Lease lease : leases) {
+            if (lease.inFlight < pipeliningLimit && (leastLoaded == null || lease.inFlight < leastLoaded.inFlight)) {
+                leastLoaded = lease;
+            }
+        }
+        return leastLoaded;
+    }
+
+    private void acquire() {
+        long start = System.nanoTime();
+        delegate.getConnection(ar -> {
+            acquireTimer.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            if (ar.failed()) {
+                Operation<?> failed;
+                boolean retry = false;
+                synchronized (this) {
+                    acquiring--;
+                    failed = waiting.pollFirst();
+                    // keep acquiring for the remaining waiters if no connection will serve them
+                    if (!waiting.isEmpty() && leases.isEmpty() && acquiring == 0) {
+                        acquiring++;
+                        retry = true;
+                    }
+                }
+                if (failed != null) {
+                    failed.fail(ar.cause());
+                }
+                if (retry) {
+                    acquire();
+                }
+                return;
+            }
+            Lease lease = new Lease(ar.result());
+            lease.connection.closeHandler(v -> {
+                synchronized (this) {
+                    lease.closed = true;
+                    leases.remove(lease);
+                }
+            });
+            synchronized (this) {
+                acquiring--;
+                leases.add(lease);
+            }
+            dispatchWaiting(lease);
+        });
+    }
+
+    /**
+     * Starts waiting operations on the lease until it is full, and gives the connection back if nothing is waiting.
+     */
+    private void dispatchWaiting(Lease lease) {
+        List<Operation<?>> started = new ArrayList<>();
+        boolean release = false;
+        boolean acquire = false;
+        synchronized (this) {
+            if (lease.closed) {
+                // the connection was lost, the statements still in flight on it fail on their own
+                if (!waiting.isEmpty() && leases.size() + acquiring < maxSize) {
+                    acquiring++;
+                    acquire = true;
+                }
+            }
+            while (!lease.closed && lease.inFlight < pipeliningLimit && !waiting.isEmpty()) {
+                started.add(waiting.pollFirst());
+                lease.inFlight++;
+                inFlight++;
+            }
+            if (lease.inFlight == 0 && leases.remove(lease)) {
+                release = true;
+            }
+        }
+        if (release) {
+            lease.connection.close();
+        }
+        if (acquire) {
+            acquire();
+        }
+        for (Operation<?> op : started) {
+            op.run(lease);
+        }
+    }
+
+    private void completed(Lease lease) {
+        admitted.decrementAndGet();
+        synchronized (this) {
+            lease.inFlight--;
+            inFlight--;
+        }
+        dispatchWaiting(lease);
+    }
+
+    private static class Lease {
+        final SqlConnection connection;
+        int inFlight;
+        boolean closed;
+
+        Lease(SqlConnection connection) {
+            this.connection = connection;
+        }
+    }
+
+    private class Operation<T> {
+        final Handler<AsyncResult<T>> handler;
+        final BiConsumer<SqlConnection, Handler<AsyncResult<T>>> operation;
+
+        Operation(Handler<AsyncResult<T>> handler, BiConsumer<SqlConnection, Handler<AsyncResult<T>>> operation) {
+            this.handler = handler;
+            this.operation = operation;
+        }
+
+        void run(Lease lease) {
+            operation.accept(lease.connection, result -> {
+                completed(lease);
+                handler.handle(result);
+            });
+        }
+
+        void fail(Throwable cause) {
+            admitted.decrementAndGet();
+            handler.handle(Future.failedFuture(cause));
+        }
+    }
+
+    @Override
+    public PgPool preparedQuery(String sql, Handler<AsyncResult<RowSet<Row>>> handler) {
+        withConnection(handler, (connection, h) -> connection.preparedQuery(sql, h));
+        return this;
+    }
+
+    @Override
+    public <R> PgPool preparedQuery(String sql, Collector<Row, ?, R> collector, Handler<AsyncResult<SqlResult<R>>> handler) {
+        withConnection(handler, (connection, h) -> connection.preparedQuery(sql, collector, h));
+        return this;
+    }
+
+    @Override
+    public PgPool query(String sql, Handler<AsyncResult<RowSet<Row>>> handler) {
+        withConnection(handler, (connection, h) -> connection.query(sql, h));
+        return this;
+    }
+
+    @Override
+    public <R> PgPool query(String sql, Collector<Row, ?, R> collector, Handler<AsyncResult<SqlResult<R>>> handler) {
+        withConnection(handler, (connection, h) -> connection.query(sql, collector, h));
+        return this;
+    }
+
+    @Override
+    public PgPool preparedQuery(String sql, Tuple arguments, Handler<AsyncResult<RowSet<Row>>> handler) {
+        withConnection(handler, (connection, h) -> connection.preparedQuery(sql, arguments, h));
+        return this;
+    }
+
+    @Override
+    public <R> PgPool preparedQuery(String sql, Tuple arguments, Collector<Row, ?, R> collector, Handler<AsyncResult<SqlResult<R>>> handler) {
+        withConnection(handler, (connection, h) -> connection.preparedQuery(sql, arguments, collector, h));
+        return this;
+    }
+
+    @Override
+    public PgPool preparedBatch(String sql, List<Tuple> batch, Handler<AsyncResult<RowSet<Row>>> handler) {
+        withConnection(handler, (connection, h) -> connection.preparedBatch(sql, batch, h));
+        return this;
+    }
+
+    @Override
+    public <R> PgPool preparedBatch(String sql, List<Tuple> batch, Collector<Row, ?, R> collector, Handler<AsyncResult<SqlResult<R>>> handler) {
+        withConnection(handler, (connection, h) -> connection.preparedBatch(sql, batch, collector, h));
+        return this;
+    }
+
+    @Override
+    public void getConnection(Handler<AsyncResult<SqlConnection>> handler) {
+        delegate.getConnection(handler);
+    }
+
+    @Override
+    public void begin(Handler<AsyncResult<Transaction>> handler) {
+        delegate.begin(handler);
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+}
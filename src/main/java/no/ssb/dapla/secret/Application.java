@@ -1,12 +1,17 @@
 package no.ssb.dapla.secret;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
+import io.grpc.Server;
+import io.grpc.ServerInterceptors;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
 import io.helidon.config.Config;
 import io.helidon.grpc.server.GrpcRouting;
 import io.helidon.grpc.server.GrpcServer;
 import io.helidon.grpc.server.GrpcServerConfiguration;
 import io.helidon.metrics.MetricsSupport;
+import io.helidon.metrics.RegistryFactory;
 import io.helidon.webserver.Routing;
 import io.helidon.webserver.ServerConfiguration;
 import io.helidon.webserver.WebServer;
@@ -21,14 +26,23 @@ import no.ssb.helidon.application.DefaultHelidonApplication;
 import no.ssb.helidon.application.HelidonApplication;
 import no.ssb.helidon.application.HelidonGrpcWebTranscoding;
 import no.ssb.helidon.media.protobuf.ProtobufJsonSupport;
+import org.eclipse.microprofile.metrics.MetricRegistry;
 import org.flywaydb.core.Flyway;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Optional;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class Application extends DefaultHelidonApplication {
 
@@ -39,11 +53,30 @@ public class Application extends DefaultHelidonApplication {
         LOG = LoggerFactory.getLogger(Application.class);
     }
 
+    private final ManagedChannel inProcessChannel;
+    private final ExecutorService inProcessExecutor;
+    // every pool opened by the application, closed on stop
+    private final List<PgPool> pgPools = new CopyOnWriteArrayList<>();
+
     public Application(Config config, AuthServiceFutureStub authService, CatalogServiceGrpc.CatalogServiceFutureStub catalogService) {
         put(Config.class, config);
         put(AuthServiceFutureStub.class, authService);
         put(CatalogServiceGrpc.CatalogServiceFutureStub.class, catalogService);
 
+        // Blocking startup phases run on their own threads while the rest of the application is built
+        ExecutorService startupExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+                .setNameFormat("startup-%d")
+                .setDaemon(true)
+                .build());
+        StartupPhases phases = new StartupPhases(startupExecutor);
+        long buildStart = System.nanoTime();
+
+        // Metrics
+        MetricRegistry metricRegistry = RegistryFactory.getInstance().getRegistry(MetricRegistry.Type.APPLICATION);
+        put(MetricRegistry.class, metricRegistry);
+        StageMetrics stageMetrics = new StageMetrics(metricRegistry);
+        put(StageMetrics.class, stageMetrics);
+
         // Initialize vertx postgres client
         PgPool pgPool = initPgPool(config.get("pgpool"));
 
@@ -56,32 +89,105 @@ public class Application extends DefaultHelidonApplication {
                 .setMinSampleInterval(config.get("readiness.min-sample-interval").asInt().orElse(0))
                 .build();
 
-        // Block until ready
-        readiness.blockingReadinessCheck();
+        // Wait for the database, then create or migrate the schema
+        CompletableFuture<Void> databaseReady = phases.runAsync("db-connectivity", readiness::blockingReadinessCheck)
+                .thenCompose(aVoid -> phases.runAsync("flyway-migrate", () -> createDatabaseSchemaIfNotExists(config.get("flyway"))));
 
-        // Create schema if not exists
-        createDatabaseSchemaIfNotExists(config.get("flyway"));
-
-        PgPool readinessAwarePgPool = new ReadinessAwarePgPool(pgPool, readiness);
+        PgPool admissionControlledPgPool = initAdmissionControl(pgPool, "pgpool", config.get("pgpool"), metricRegistry);
+        PgHealthMonitor healthMonitor = new PgHealthMonitor(config.get("pgpool.health"), readiness::set, metricRegistry, "pgpool");
+        PgPool readinessAwarePgPool = new ReadinessAwarePgPool(admissionControlledPgPool, healthMonitor);
         put(PgPool.class, readinessAwarePgPool);
 
+        // Optional read replica, which does not take part in readiness
+        PgPool replicaPgPool = null;
+        if (config.get("pgpool.replica").exists()) {
+            replicaPgPool = initAdmissionControl(initPgPool(config.get("pgpool.replica")), "pgpool.replica",
+                    config.get("pgpool.replica"), metricRegistry);
+        }
+
+        // Envelope encryption of secret content, the data keys are loaded once the schema is in place
+        SecretEncryption encryption = SecretEncryption.create(config.get("encryption"));
+        put(SecretEncryption.class, encryption);
+
         // Repository
-        SecretRepository secretRepository = new SecretRepository(readinessAwarePgPool);
+        SecretRepository secretRepository = new CachingSecretRepository(new SecretRepository(readinessAwarePgPool, replicaPgPool,
+                Duration.ofMillis(config.get("pgpool.read-your-writes-millis").asLong().orElse(5000L)), stageMetrics, encryption),
+                config.get("secret-cache"), metricRegistry);
         put(SecretRepository.class, secretRepository);
 
+        // Pre-generated key material
+        SecretKeyPool keyPool = new SecretKeyPool(config.get("key-pool"), metricRegistry);
+        put(SecretKeyPool.class, keyPool);
+
+        // Hedging of idempotent catalog and auth lookups
+        HedgedCalls hedgedCalls = new HedgedCalls(config.get("hedging"), stageMetrics, metricRegistry);
+        put(HedgedCalls.class, hedgedCalls);
+
         // Grpc Service
-        SecretServiceGrpc grpcService = new SecretServiceGrpc(secretRepository, authService, catalogService);
+        SecretServiceGrpc grpcService = new SecretServiceGrpc(secretRepository, authService, catalogService,
+                new AccessDecisionCache(config.get("access-cache")),
+                new CatalogLookupCache<>(config.get("catalog-cache")),
+                new CatalogLookupCache<>(config.get("catalog-cache")),
+                keyPool,
+                stageMetrics,
+                hedgedCalls);
         put(SecretServiceGrpc.class, grpcService);
 
+        SecretBatchGrpc batchService = new SecretBatchGrpc(grpcService, stageMetrics,
+                config.get("secret-batch.max-datasets").asInt().orElse(100));
+        put(SecretBatchGrpc.class, batchService);
+
+        // Services that expose key material in bulk are only open to callers with the admin token
+        AdminAuthorization adminAuthorization = new AdminAuthorization(config.get("admin"));
+
         // Grpc Server
+        GrpcRouting.Builder grpcRouting = GrpcRouting.builder()
+                .intercept(new SecretVersionsInterceptor())
+                .register(grpcService)
+                .register(batchService);
+        if (config.get("secret-transfer.enabled").asBoolean().orElse(false)) {
+            // Export cursors hold a connection for the whole export, so they get a small pool of their own instead of
+            // taking connections that the admission controlled pool counts as available
+            Config readPoolConfig = config.get("pgpool.replica").exists() ? config.get("pgpool.replica") : config.get("pgpool");
+            PgPool cursorPgPool = initPgPool(readPoolConfig, config.get("secret-transfer.max-connections").asInt().orElse(2));
+            SecretTransferGrpc transferService = new SecretTransferGrpc(secretRepository, cursorPgPool, stageMetrics, adminAuthorization,
+                    config.get("secret-transfer"));
+            put(SecretTransferGrpc.class, transferService);
+            grpcRouting.register(transferService);
+        }
+        if (config.get("secret-rotation.enabled").asBoolean().orElse(false)) {
+            SecretRotationGrpc rotationService = new SecretRotationGrpc(secretRepository, keyPool, stageMetrics, adminAuthorization,
+                    config.get("secret-rotation"));
+            put(SecretRotationGrpc.class, rotationService);
+            grpcRouting.register(rotationService);
+        }
         GrpcServer grpcServer = GrpcServer.create(
                 GrpcServerConfiguration.create(config.get("grpcserver")),
-                GrpcRouting.builder()
-                        .register(grpcService)
-                        .build()
+                grpcRouting.build()
         );
         put(GrpcServer.class, grpcServer);
 
+        // In-process transport for the /rpc transcoding, so that REST calls reach the service without a loopback socket.
+        // Handlers generate keys and encrypt content, so they run on a pool of their own and not on web server threads
+        String inProcessServerName = InProcessServerBuilder.generateName();
+        inProcessExecutor = Executors.newFixedThreadPool(
+                config.get("rpc.executor-threads").asInt().orElse(Runtime.getRuntime().availableProcessors()),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("rpc-transcoding-%d")
+                        .setDaemon(true)
+                        .build());
+        Server inProcessServer = InProcessServerBuilder.forName(inProcessServerName)
+                .executor(inProcessExecutor)
+                .addService(ServerInterceptors.intercept(grpcService, new SecretVersionsInterceptor()))
+                .build();
+        try {
+            inProcessServer.start();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        put(Server.class, inProcessServer);
+        inProcessChannel = InProcessChannelBuilder.forName(inProcessServerName).directExecutor().build();
+
         HealthService healthService = new HealthService(readiness, () -> get(WebServer.class));
 
         // Routing
@@ -91,13 +197,7 @@ public class Application extends DefaultHelidonApplication {
                 .register(MetricsSupport.create())
                 .register(healthService)
                 .register("/rpc", new HelidonGrpcWebTranscoding(
-                        () -> ManagedChannelBuilder
-                                .forAddress("localhost", Optional.of(grpcServer)
-                                        .filter(GrpcServer::isRunning)
-                                        .map(GrpcServer::port)
-                                        .orElseThrow())
-                                .usePlaintext()
-                                .build(),
+                        () -> inProcessChannel,
                         grpcService
                 ))
                 .build();
@@ -107,6 +207,41 @@ public class Application extends DefaultHelidonApplication {
         ServerConfiguration configuration = ServerConfiguration.builder(config.get("webserver")).build();
         WebServer webServer = WebServer.create(configuration, routing);
         put(WebServer.class, webServer);
+        phases.record("build-application", buildStart);
+
+        // The servers are started after the constructor returns, so readiness cannot turn green before the pools are
+        // open and the statements prepared
+        int warmUpConnections = config.get("pgpool.pool-options.max-size").asInt().orElse(5);
+        int replicaWarmUpConnections = config.get("pgpool.replica.pool-options.max-size").asInt().orElse(5);
+        long warmUpTimeoutSeconds = config.get("pgpool.warm-up-timeout-seconds").asLong().orElse(30L);
+        try {
+            databaseReady
+                    .thenCompose(aVoid -> phases.time("load-data-keys", () -> encryption.loadDataKeys(pgPool)))
+                    .thenCompose(aVoid -> phases.time("pgpool-warm-up", () -> secretRepository.warmUp(warmUpConnections, replicaWarmUpConnections)
+                            .orTimeout(warmUpTimeoutSeconds, TimeUnit.SECONDS)
+                            .exceptionally(throwable -> {
+                                if (throwable instanceof TimeoutException) {
+                                    throw new IllegalStateException(String.format("Unable to open %d connections to the "
+                                                    + "database, and %d to the replica if any, within %d seconds",
+                                            warmUpConnections, replicaWarmUpConnections, warmUpTimeoutSeconds), throwable);
+                                }
+                                throw throwable instanceof CompletionException ? (CompletionException) throwable : new CompletionException(throwable);
+                            })))
+                    .join();
+        } finally {
+            startupExecutor.shutdown();
+        }
+        phases.log();
+
+        // Secrets stored before encryption was enabled are encrypted in the background
+        secretRepository.encryptPlaintextSecrets(config.get("encryption.migration-batch-size").asInt().orElse(100))
+                .whenComplete((encrypted, throwable) -> {
+                    if (throwable != null) {
+                        LOG.error("Encryption of plaintext secrets failed", throwable);
+                    } else if (encrypted > 0) {
+                        LOG.info("Encrypted {} plaintext secrets", encrypted);
+                    }
+                });
     }
 
     public static void main(String[] args) {
@@ -136,24 +271,54 @@ public class Application extends DefaultHelidonApplication {
     }
 
     private PgPool initPgPool(Config pgPoolConfig) {
+        return initPgPool(pgPoolConfig, pgPoolConfig.get("pool-options.max-size").asInt().orElse(5));
+    }
+
+    private PgPool initPgPool(Config pgPoolConfig, int maxSize) {
         Config connectConfig = pgPoolConfig.get("connect-options");
         PgConnectOptions connectOptions = new PgConnectOptions()
                 .setPort(connectConfig.get("port").asInt().orElse(15432))
                 .setHost(connectConfig.get("host").asString().orElse("localhost"))
                 .setDatabase(connectConfig.get("database").asString().orElse("rdc"))
                 .setUser(connectConfig.get("user").asString().orElse("rdc"))
-                .setPassword(connectConfig.get("password").asString().orElse("rdc"));
+                .setPassword(connectConfig.get("password").asString().orElse("rdc"))
+                // every repository statement is prepared once per connection and then reused
+                .setCachePreparedStatements(connectConfig.get("cache-prepared-statements").asBoolean().orElse(true))
+                .setPreparedStatementCacheMaxSize(connectConfig.get("prepared-statement-cache-max-size").asInt().orElse(SecretRepository.STATEMENTS.size()))
+                .setPipeliningLimit(connectConfig.get("pipelining-limit").asInt().orElse(1));
 
         Config poolConfig = pgPoolConfig.get("pool-options");
-        PoolOptions poolOptions = new PoolOptions().setMaxSize(poolConfig.get("max-size").asInt().orElse(5));
+        PoolOptions poolOptions = new PoolOptions()
+                .setMaxSize(maxSize)
+                .setMaxWaitQueueSize(poolConfig.get("max-wait-queue-size").asInt().orElse(100));
 
-        return PgPool.pool(connectOptions, poolOptions);
+        PgPool pgPool = PgPool.pool(connectOptions, poolOptions);
+        pgPools.add(pgPool);
+        return pgPool;
+    }
+
+    private PgPool initAdmissionControl(PgPool pgPool, String name, Config pgPoolConfig, MetricRegistry metricRegistry) {
+        Config poolConfig = pgPoolConfig.get("pool-options");
+        return new AdmissionControlledPgPool(pgPool, name,
+                poolConfig.get("max-size").asInt().orElse(5),
+                poolConfig.get("max-wait-queue-size").asInt().orElse(100),
+                pgPoolConfig.get("connect-options.pipelining-limit").asInt().orElse(1),
+                metricRegistry);
     }
 
     @Override
     public CompletionStage<HelidonApplication> stop() {
+        get(SecretKeyPool.class).close();
+        get(HedgedCalls.class).close();
+        inProcessChannel.shutdown();
+        get(Server.class).shutdown();
+        inProcessExecutor.shutdown();
         return super.stop().thenCombine(
                 CompletableFuture.runAsync(() -> shutdownAndAwaitTermination((ManagedChannel) get(AuthServiceFutureStub.class).getChannel())), (application, aVoid) -> this
-        );
+        ).thenApply(application -> {
+            // the servers are stopped, so no request is left to use the pools
+            pgPools.forEach(PgPool::close);
+            return application;
+        });
     }
 }
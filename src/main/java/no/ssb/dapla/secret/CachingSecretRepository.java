@@ -0,0 +1,211 @@
+package no.ssb.dapla.secret;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import io.helidon.config.Config;
+import no.ssb.dapla.secret.service.protobuf.Secret;
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.Gauge;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Secret repository that keeps recently read secrets in a bounded in-memory cache in front of another repository.
+ * Lookups are served from the cache when possible, and only the ids that are missing are fetched from the wrapped
+ * repository. Operations that do not touch the cache run on the pools and read-your-writes window of the wrapped
+ * repository. Entries are dropped when a secret is rotated or deleted through this instance; a secret rotated
+ * through another instance may be served at its previous version until the entry expires. The current versions of
+ * secrets are cached the same way, so that a conditional read of unchanged secrets does not reach the database.
+ * Reads of given versions never go through the cache.
+ */
+public class CachingSecretRepository extends SecretRepository {
+
+    private final SecretRepository delegate;
+    private final Cache<String, Secret> cache;
+    private final Cache<String, Long> versions;
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter evictions;
+    // bumped before entries are invalidated, so that a read that started earlier does not put back what it read
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public CachingSecretRepository(SecretRepository delegate, Config cacheConfig, MetricRegistry metricRegistry) {
+        super(delegate);
+        this.delegate = delegate;
+        this.hits = metricRegistry.counter("secret.cache.hits");
+        this.misses = metricRegistry.counter("secret.cache.misses");
+        this.evictions = metricRegistry.counter("secret.cache.evictions");
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(cacheConfig.get("max-size").asLong().orElse(10000L))
+                .expireAfterWrite(Duration.ofSeconds(cacheConfig.get("ttl-seconds").asLong().orElse(300L)))
+                .<String, Secret>removalListener(notification -> {
+                    if (notification.getCause() == RemovalCause.SIZE || notification.getCause() == RemovalCause.EXPIRED) {
+                        evictions.inc();
+                    }
+                })
+                .build();
+        this.versions = CacheBuilder.newBuilder()
+                .maximumSize(cacheConfig.get("max-size").asLong().orElse(10000L))
+                .expireAfterWrite(Duration.ofSeconds(cacheConfig.get("ttl-seconds").asLong().orElse(300L)))
+                .build();
+        // the registry is shared by every application built in the jvm, and a gauge cannot be registered twice
+        metricRegistry.remove("secret.cache.size");
+        metricRegistry.register("secret.cache.size", (Gauge<Long>) cache::size);
+    }
+
+    @Override
+    public CompletableFuture<Set<Secret>> getSecrets(String... ids) {
+        Set<Secret> secrets = new HashSet<>();
+        List<String> missingIds = new ArrayList<>();
+        for (String id : ids) {
+            Secret secret = cache.getIfPresent(id);
+            if (secret == null) {
+                missingIds.add(id);
+            } else {
+                secrets.add(secret);
+            }
+        }
+        hits.inc(secrets.size());
+        if (missingIds.isEmpty()) {
+            return CompletableFuture.completedFuture(secrets);
+        }
+        misses.inc(missingIds.size());
+        long readInvalidations = invalidations.get();
+        return delegate.getSecrets(missingIds.toArray(String[]::new))
+                .thenApply(fetchedSecrets -> {
+                    cacheAll(readInvalidations, fetchedSecrets);
+                    secrets.addAll(fetchedSecrets);
+                    return secrets;
+                });
+    }
+
+    @Override
+    public Set<Secret> getCachedSecrets(String... ids) {
+        Set<Secret> secrets = new HashSet<>();
+        for (String id : ids) {
+            Secret secret = cache.getIfPresent(id);
+            if (secret != null) {
+                secrets.add(secret);
+            }
+        }
+        hits.inc(secrets.size());
+        return secrets;
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Long>> getSecretVersions(String... ids) {
+        Map<String, Long> currentVersions = new HashMap<>();
+        List<String> missingIds = new ArrayList<>();
+        for (String id : ids) {
+            Long version = versions.getIfPresent(id);
+            if (version == null) {
+                missingIds.add(id);
+            } else {
+                currentVersions.put(id, version);
+            }
+        }
+        hits.inc(currentVersions.size());
+        if (missingIds.isEmpty()) {
+            return CompletableFuture.completedFuture(currentVersions);
+        }
+        misses.inc(missingIds.size());
+        long readInvalidations = invalidations.get();
+        return delegate.getSecretVersions(missingIds.toArray(String[]::new))
+                .thenApply(fetchedVersions -> {
+                    versions.putAll(fetchedVersions);
+                    if (invalidations.get() != readInvalidations) {
+                        versions.invalidateAll(fetchedVersions.keySet());
+                    }
+                    currentVersions.putAll(fetchedVersions);
+                    return currentVersions;
+                });
+    }
+
+    @Override
+    public CompletableFuture<Secret> getSecret(String id) {
+        Secret secret = cache.getIfPresent(id);
+        if (secret != null) {
+            hits.inc();
+            return CompletableFuture.completedFuture(secret);
+        }
+        misses.inc();
+        long readInvalidations = invalidations.get();
+        return delegate.getSecret(id)
+                .thenApply(fetchedSecret -> {
+                    if (fetchedSecret != null) {
+                        cacheAll(readInvalidations, Set.of(fetchedSecret));
+                    }
+                    return fetchedSecret;
+                });
+    }
+
+    @Override
+    public CompletableFuture<Set<Secret>> createOrGetSecrets(Secret... secrets) {
+        long readInvalidations = invalidations.get();
+        return delegate.createOrGetSecrets(secrets)
+                .thenApply(storedSecrets -> {
+                    cacheAll(readInvalidations, storedSecrets);
+                    return storedSecrets;
+                });
+    }
+
+    @Override
+    public CompletableFuture<List<String>> rotateSecrets(long beforeVersion, Secret... secrets) {
+        String[] ids = Arrays.stream(secrets).map(Secret::getId).toArray(String[]::new);
+        return delegate.rotateSecrets(beforeVersion, secrets)
+                .whenComplete((rotatedIds, throwable) -> invalidate(ids));
+    }
+
+    @Override
+    public CompletableFuture<Integer> deleteSecret(String id) {
+        invalidate(id);
+        return delegate.deleteSecret(id)
+                .whenComplete((rowsAffected, throwable) -> invalidate(id));
+    }
+
+    @Override
+    CompletableFuture<Void> deleteAllSecrets() {
+        invalidateAll();
+        return delegate.deleteAllSecrets()
+                .whenComplete((aVoid, throwable) -> invalidateAll());
+    }
+
+    /**
+     * Puts secrets that were read while the invalidation count was the given one. If entries have been invalidated
+     * since, the secrets may be older than what the invalidation was for, and are dropped again.
+     */
+    private void cacheAll(long readInvalidations, Collection<Secret> secrets) {
+        for (Secret secret : secrets) {
+            cache.put(secret.getId(), secret);
+        }
+        if (invalidations.get() != readInvalidations) {
+            for (Secret secret : secrets) {
+                cache.invalidate(secret.getId());
+            }
+        }
+    }
+
+    private void invalidate(String... ids) {
+        invalidations.incrementAndGet();
+        cache.invalidateAll(Arrays.asList(ids));
+        versions.invalidateAll(Arrays.asList(ids));
+    }
+
+    private void invalidateAll() {
+        invalidations.incrementAndGet();
+        cache.invalidateAll();
+        versions.invalidateAll();
+    }
+}
@@ -0,0 +1,108 @@
+package no.ssb.dapla.secret;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.Context;
+import io.grpc.Deadline;
+import io.grpc.Status;
+import io.grpc.StatusException;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The deadline and cancellation of one incoming call. Futures bound to the scope fail with DEADLINE_EXCEEDED when the
+ * deadline passes, and are cancelled when the client cancels or disconnects. What that stops depends on the work
+ * behind the future: a catalog or auth call shared through a cache is cancelled once no other incoming call waits for
+ * it, see {@link SharedCall}, while a database query that has been sent runs to completion and its result is dropped.
+ */
+class CallScope {
+
+    static final long DEFAULT_DEADLINE_SECONDS = 10;
+
+    final Deadline deadline;
+    private final Queue<CompletableFuture<?>> pending = new ConcurrentLinkedQueue<>();
+    private volatile boolean cancelled;
+
+    CallScope(Deadline deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * Must be called from the thread that runs the service method, where the context of the call is current.
+     */
+    static CallScope current() {
+        Context context = Context.current();
+        Deadline deadline = context.getDeadline();
+        CallScope scope = new CallScope(deadline != null ? deadline : Deadline.after(DEFAULT_DEADLINE_SECONDS, TimeUnit.SECONDS));
+        context.addListener(cancelledContext -> {
+            if (cancelledContext.cancellationCause() != null) {
+                scope.cancel();
+            }
+        }, MoreExecutors.directExecutor());
+        return scope;
+    }
+
+    /**
+     * Deadline for a downstream call that is shared by concurrent incoming calls. It does not depend on the deadline
+     * of any one of them, so that a caller with a short deadline does not fail the others; each caller's own deadline
+     * is enforced on its view of the shared result by {@link #bind}.
+     */
+    static Deadline sharedDeadline() {
+        return Deadline.after(DEFAULT_DEADLINE_SECONDS, TimeUnit.SECONDS);
+    }
+
+    <T> CompletableFuture<T> bind(CompletableFuture<T> future) {
+        CompletableFuture<T> bounded = withDeadline(future, deadline);
+        pending.add(bounded);
+        bounded.whenComplete((result, throwable) -> pending.remove(bounded));
+        if (cancelled) {
+            bounded.cancel(true);
+        }
+        return bounded;
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Stops a chain of dependent stages before it starts work that should not be done for a cancelled call.
+     */
+    void throwIfCancelled() {
+        if (cancelled) {
+            throw new CompletionException(new StatusException(Status.CANCELLED.withDescription("Call was cancelled by the client")));
+        }
+    }
+
+    void cancel() {
+        cancelled = true;
+        CompletableFuture<?> future;
+        while ((future = pending.poll()) != null) {
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * Fails the returned future with a TimeoutException when the deadline passes, and then cancels the given future,
+     * which lets the work behind it be abandoned if that work supports cancellation.
+     */
+    static <T> CompletableFuture<T> withDeadline(CompletableFuture<T> future, Deadline deadline) {
+        CompletableFuture<T> bounded = new CompletableFuture<>();
+        future.whenComplete((result, throwable) -> {
+            if (throwable != null) {
+                bounded.completeExceptionally(throwable);
+            } else {
+                bounded.complete(result);
+            }
+        });
+        bounded.whenComplete((result, throwable) -> {
+            if (!future.isDone()) {
+                future.cancel(true);
+            }
+        });
+        return bounded.orTimeout(Math.max(0, deadline.timeRemaining(TimeUnit.NANOSECONDS)), TimeUnit.NANOSECONDS);
+    }
+}
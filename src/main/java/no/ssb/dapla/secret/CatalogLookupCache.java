@@ -0,0 +1,124 @@
+package no.ssb.dapla.secret;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.grpc.Status;
+import io.helidon.config.Config;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Cache of catalog lookups keyed by dataset path. Concurrent lookups of the same path share one in-flight catalog
+ * call, which is cancelled if every lookup waiting for it is cancelled. Entries older than the time-to-live are still served for a bounded stale period while a single background
+ * refresh replaces them, and NOT_FOUND results are cached for a separate, shorter time.
+ */
+public class CatalogLookupCache<V> {
+
+    private final Cache<String, Entry> cache;
+    private final long ttlNanos;
+    private final long staleNanos;
+    private final long notFoundTtlNanos;
+
+    public CatalogLookupCache(Config config) {
+        Duration ttl = Duration.ofMillis(config.get("ttl-millis").asLong().orElse(60000L));
+        Duration stale = Duration.ofMillis(config.get("stale-millis").asLong().orElse(60000L));
+        Duration notFoundTtl = Duration.ofMillis(config.get("not-found-ttl-millis").asLong().orElse(5000L));
+        this.ttlNanos = ttl.toNanos();
+        this.staleNanos = stale.toNanos();
+        this.notFoundTtlNanos = notFoundTtl.toNanos();
+        Duration maxAge = ttl.plus(stale);
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(config.get("max-size").asLong().orElse(10000L))
+                .expireAfterWrite(maxAge.compareTo(notFoundTtl) > 0 ? maxAge : notFoundTtl)
+                .build();
+    }
+
+    public CompletableFuture<V> get(String datasetPath, Function<String, CompletableFuture<V>> lookup) {
+        long now = System.nanoTime();
+        AtomicReference<Entry> created = new AtomicReference<>();
+        Entry entry = cache.asMap().compute(datasetPath, (key, existing) -> {
+            if (existing != null && !existing.isExpired(now) && existing.tryJoin()) {
+                return existing;
+            }
+            created.set(new Entry());
+            return created.get();
+        });
+        if (entry == created.get()) {
+            load(datasetPath, entry, lookup);
+        } else if (entry.isStale(now) && entry.refreshing.compareAndSet(false, true)) {
+            refresh(datasetPath, entry, lookup);
+        }
+        return entry.view();
+    }
+
+    private void load(String datasetPath, Entry entry, Function<String, CompletableFuture<V>> lookup) {
+        CompletableFuture<V> call = apply(lookup, datasetPath);
+        entry.attach(call);
+        call.whenComplete((value, throwable) -> {
+            if (throwable != null && !isNotFound(throwable)) {
+                cache.asMap().remove(datasetPath, entry);
+            }
+            entry.complete(value, throwable);
+        });
+    }
+
+    private void refresh(String datasetPath, Entry staleEntry, Function<String, CompletableFuture<V>> lookup) {
+        apply(lookup, datasetPath).whenComplete((value, throwable) -> {
+            if (throwable != null && !isNotFound(throwable)) {
+                // keep serving the stale value and let the next request retry the refresh
+                staleEntry.refreshing.set(false);
+                return;
+            }
+            Entry refreshedEntry = new Entry();
+            refreshedEntry.complete(value, throwable);
+            cache.asMap().replace(datasetPath, staleEntry, refreshedEntry);
+        });
+    }
+
+    /**
+     * Runs the lookup, turning a lookup that throws instead of returning a failed future into a failed future, so
+     * that the entry waiting for it is completed and a refresh in progress is ended.
+     */
+    private static <V> CompletableFuture<V> apply(Function<String, CompletableFuture<V>> lookup, String datasetPath) {
+        try {
+            return lookup.apply(datasetPath);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private static boolean isNotFound(Throwable throwable) {
+        return Status.fromThrowable(throwable).getCode() == Status.Code.NOT_FOUND;
+    }
+
+    private class Entry extends SharedCall<V> {
+        final AtomicBoolean refreshing = new AtomicBoolean();
+        volatile long freshUntil = Long.MAX_VALUE;
+        volatile long expiresAt = Long.MAX_VALUE;
+
+        void complete(V value, Throwable throwable) {
+            long now = System.nanoTime();
+            if (throwable != null) {
+                freshUntil = now + notFoundTtlNanos;
+                expiresAt = freshUntil;
+                future.completeExceptionally(throwable);
+                return;
+            }
+            freshUntil = now + ttlNanos;
+            expiresAt = freshUntil + staleNanos;
+            future.complete(value);
+        }
+
+        boolean isStale(long now) {
+            return freshUntil != Long.MAX_VALUE && now - freshUntil > 0;
+        }
+
+        boolean isExpired(long now) {
+            return expiresAt != Long.MAX_VALUE && now - expiresAt > 0;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package no.ssb.dapla.secret;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.helidon.config.Config;
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.Tag;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Hedging of idempotent downstream calls. When a call has not completed after the configured latency percentile of
+ * earlier successful calls to the same stage, a second identical call is sent, the first result of the two is used
+ * and the other call is cancelled.
+ */
+public class HedgedCalls implements AutoCloseable {
+
+    private final boolean enabled;
+    private final double percentile;
+    private final long minDelayNanos;
+    private final StageMetrics stageMetrics;
+    private final MetricRegistry metricRegistry;
+    private final Map<String, Counter> hedges = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+
+    public HedgedCalls(Config config, StageMetrics stageMetrics, MetricRegistry metricRegistry) {
+        this.enabled = config.get("enabled").asBoolean().orElse(false);
+        this.percentile = config.get("percentile").asDouble().orElse(0.95);
+        this.minDelayNanos = Duration.ofMillis(config.get("min-delay-millis").asLong().orElse(20L)).toNanos();
+        this.stageMetrics = stageMetrics;
+        this.metricRegistry = metricRegistry;
+        this.scheduler = !enabled ? null : Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("hedged-calls-%d")
+                .setDaemon(true)
+                .build());
+    }
+
+    public <T> CompletableFuture<T> call(String stage, Supplier<CompletableFuture<T>> attempt) {
+        if (!enabled) {
+            return attempt.get();
+        }
+        long delayNanos = Math.max(minDelayNanos, stageMetrics.latencyNanos(stage, percentile));
+        CompletableFuture<T> result = new CompletableFuture<>();
+        CompletableFuture<T> primary = attempt.get();
+        AtomicReference<CompletableFuture<T>> secondary = new AtomicReference<>();
+        ScheduledFuture<?> hedge = scheduler.schedule(() -> {
+            if (result.isDone()) {
+                return;
+            }
+            hedges.computeIfAbsent(stage, key -> metricRegistry.counter("secret.hedged-calls", new Tag("stage", stage))).inc();
+            secondary.set(attempt.get());
+            forward(secondary.get(), result);
+            // the result may have completed while the hedge was being sent
+            if (result.isDone()) {
+                secondary.get().cancel(true);
+            }
+        }, delayNanos, TimeUnit.NANOSECONDS);
+        forward(primary, result);
+        result.whenComplete((value, throwable) -> {
+            // cancelling the call that completed first is a no-op
+            hedge.cancel(false);
+            primary.cancel(true);
+            CompletableFuture<T> hedged = secondary.get();
+            if (hedged != null) {
+                hedged.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    private static <T> void forward(CompletableFuture<T> attempt, CompletableFuture<T> result) {
+        attempt.whenComplete((value, throwable) -> {
+            if (throwable == null) {
+                result.complete(value);
+            } else {
+                result.completeExceptionally(throwable);
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package no.ssb.dapla.secret;
+
+import io.helidon.config.Config;
+import org.eclipse.microprofile.metrics.Gauge;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Passive health signal for a database pool, built from the outcome and latency of the queries it already runs.
+ * Outcomes are counted in a ring of one-second buckets using only atomic operations, so recording a result never
+ * blocks. When the share of failed or slow queries in the window crosses the threshold the circuit opens, queries
+ * fail fast for a while, and then a single probe query decides whether it closes again. A probe that has not
+ * reported back within the probe timeout loses its lease, and the next caller probes instead.
+ */
+public class PgHealthMonitor {
+
+    static final int CLOSED = 0;
+    static final int OPEN = 1;
+    static final int HALF_OPEN = 2;
+
+    static final int REJECTED = -1;
+    static final int PERMITTED = 0;
+    static final int PROBE = 1;
+
+    private static final long BUCKET_NANOS = Duration.ofSeconds(1).toNanos();
+
+    private final LongSupplier nanoClock;
+    private final Consumer<Boolean> healthListener;
+    private final int buckets;
+    private final int minimumRequests;
+    private final double failureRateThreshold;
+    private final long slowCallNanos;
+    private final long openNanos;
+    private final long probeTimeoutNanos;
+
+    private final AtomicLongArray bucketEpochs;
+    private final AtomicLongArray successes;
+    private final AtomicLongArray failures;
+    private final AtomicInteger state = new AtomicInteger(CLOSED);
+    private volatile long openUntil;
+    private volatile long probeUntil;
+
+    public PgHealthMonitor(Config config, Consumer<Boolean> healthListener, MetricRegistry metricRegistry, String name) {
+        this(config, healthListener, System::nanoTime);
+        // the registry outlives this monitor when the application is restarted within the same JVM
+        metricRegistry.remove(name + ".circuit.state");
+        metricRegistry.register(name + ".circuit.state", (Gauge<Integer>) state::get);
+        metricRegistry.remove(name + ".health.failure-rate");
+        metricRegistry.register(name + ".health.failure-rate", (Gauge<Double>) this::failureRate);
+    }
+
+    PgHealthMonitor(Config config, Consumer<Boolean> healthListener, LongSupplier nanoClock) {
+        this.nanoClock = nanoClock;
+        this.healthListener = healthListener;
+        this.buckets = config.get("window-seconds").asInt().orElse(10);
+        this.minimumRequests = config.get("minimum-requests").asInt().orElse(20);
+        this.failureRateThreshold = config.get("failure-rate-threshold").asDouble().orElse(0.5);
+        this.slowCallNanos = Duration.ofMillis(config.get("slow-call-millis").asLong().orElse(2000L)).toNanos();
+        this.openNanos = Duration.ofMillis(config.get("open-millis").asLong().orElse(5000L)).toNanos();
+        this.probeTimeoutNanos = Duration.ofMillis(config.get("probe-timeout-millis").asLong().orElse(5000L)).toNanos();
+        this.bucketEpochs = new AtomicLongArray(buckets);
+        this.successes = new AtomicLongArray(buckets);
+        this.failures = new AtomicLongArray(buckets);
+        resetWindow();
+    }
+
+    /**
+     * @return {@link #PERMITTED} if a query may be sent to the database, {@link #REJECTED} if not, or {@link #PROBE}
+     * for the one caller let through after the open period has passed, whose outcome decides whether the circuit
+     * closes again.
+     */
+    public int tryAcquire() {
+        int current = state.get();
+        if (current == CLOSED) {
+            return PERMITTED;
+        }
+        long now = nanoClock.getAsLong();
+        if (current == OPEN && now - openUntil >= 0) {
+            // set before the circuit turns half-open, so that no caller sees it half-open with an expired lease
+            probeUntil = now + probeTimeoutNanos;
+            if (state.compareAndSet(OPEN, HALF_OPEN)) {
+                return PROBE;
+            }
+        }
+        if (current == HALF_OPEN && now - probeUntil >= 0 && state.compareAndSet(HALF_OPEN, OPEN)) {
+            // the probe never reported back, and openUntil is already in the past, so this caller may probe instead
+            return tryAcquire();
+        }
+        return REJECTED;
+    }
+
+    /**
+     * Gives back a permit whose query ended without saying anything about database health, e.g. a pool rejection.
+     */
+    public void release(boolean probe) {
+        if (probe) {
+            // leaves openUntil in the past so that the next caller becomes the probe
+            state.compareAndSet(HALF_OPEN, OPEN);
+        }
+    }
+
+    /**
+     * Records the outcome of a query. Only a probe moves a half-open circuit, also one that lost its lease; queries
+     * that were still in flight when the circuit opened are counted in the window like any other.
+     */
+    public void record(boolean probe, boolean succeeded, long startNanos) {
+        long now = nanoClock.getAsLong();
+        boolean healthy = succeeded && now - startNanos < slowCallNanos;
+        if (probe) {
+            if (healthy) {
+                close();
+            } else {
+                open(now);
+            }
+            return;
+        }
+        int bucket = currentBucket(now);
+        if (healthy) {
+            successes.incrementAndGet(bucket);
+            return;
+        }
+        failures.incrementAndGet(bucket);
+        long[] totals = totals(now);
+        long total = totals[0] + totals[1];
+        if (total >= minimumRequests && (double) totals[1] / total >= failureRateThreshold && state.get() == CLOSED) {
+            open(now);
+        }
+    }
+
+    public int state() {
+        return state.get();
+    }
+
+    double failureRate() {
+        long[] totals = totals(nanoClock.getAsLong());
+        long total = totals[0] + totals[1];
+        return total == 0 ? 0 : (double) totals[1] / total;
+    }
+
+    private void open(long now) {
+        openUntil = now + openNanos;
+        if (state.getAndSet(OPEN) != OPEN) {
+            healthListener.accept(false);
+        }
+    }
+
+    private void close() {
+        if (state.compareAndSet(HALF_OPEN, CLOSED)) {
+            resetWindow();
+            healthListener.accept(true);
+        }
+    }
+
+    // Outcomes recorded by other threads while a bucket is being recycled may be lost, which is fine for a health signal
+    private int currentBucket(long now) {
+        long epoch = Math.floorDiv(now, BUCKET_NANOS);
+        int bucket = (int) Math.floorMod(epoch, (long) buckets);
+        long bucketEpoch = bucketEpochs.get(bucket);
+        if (bucketEpoch != epoch && bucketEpochs.compareAndSet(bucket, bucketEpoch, epoch)) {
+            successes.set(bucket, 0);
+            failures.set(bucket, 0);
+        }
+        return bucket;
+    }
+
+    private long[] totals(long now) {
+        long epoch = Math.floorDiv(now, BUCKET_NANOS);
+        long[] totals = new long[2];
+        for (int bucket = 0; bucket < buckets; bucket++) {
+            long bucketEpoch = bucketEpochs.get(bucket);
+            if (bucketEpoch != Long.MIN_VALUE && epoch - bucketEpoch < buckets) {
+                totals[0] += successes.get(bucket);
+                totals[1] += failures.get(bucket);
+            }
+        }
+        return totals;
+    }
+
+    private void resetWindow() {
+        for (int bucket = 0; bucket < buckets; bucket++) {
+            bucketEpochs.set(bucket, Long.MIN_VALUE);
+            successes.set(bucket, 0);
+            failures.set(bucket, 0);
+        }
+    }
+}
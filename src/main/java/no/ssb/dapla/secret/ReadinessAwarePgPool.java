@@ -1,6 +1,9 @@
 package no.ssb.dapla.secret;
 
+import io.grpc.Status;
+import io.grpc.StatusException;
 import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
 import io.vertx.core.Handler;
 import io.vertx.pgclient.PgPool;
 import io.vertx.sqlclient.Row;
@@ -9,83 +12,139 @@ import io.vertx.sqlclient.SqlConnection;
 import io.vertx.sqlclient.SqlResult;
 import io.vertx.sqlclient.Transaction;
 import io.vertx.sqlclient.Tuple;
-import no.ssb.dapla.readiness.Readiness;
 
 import java.util.List;
 import java.util.stream.Collector;
 
+/**
+ * Pool that feeds the outcome of every query to a passive health monitor, which drives readiness and short-circuits
+ * queries with UNAVAILABLE while the database is considered down.
+ */
 public class ReadinessAwarePgPool implements PgPool {
 
     private final PgPool delegate;
-    private final Readiness readiness;
+    private final PgHealthMonitor healthMonitor;
 
-    public ReadinessAwarePgPool(PgPool delegate, Readiness readiness) {
+    public ReadinessAwarePgPool(PgPool delegate, PgHealthMonitor healthMonitor) {
         this.delegate = delegate;
-        this.readiness = readiness;
+        this.healthMonitor = healthMonitor;
     }
 
-    Handler<AsyncResult<RowSet<Row>>> handleRowSet(Handler<AsyncResult<RowSet<Row>>> handler) {
+    <T> Handler<AsyncResult<T>> track(Handler<AsyncResult<T>> handler, boolean probe) {
+        long start = System.nanoTime();
         return ar -> {
-            readiness.set(ar.succeeded());
+            recordHealth(ar, probe, start);
             handler.handle(ar);
         };
     }
 
-    <R> Handler<AsyncResult<SqlResult<R>>> handleSqlResult(Handler<AsyncResult<SqlResult<R>>> handler) {
-        return ar -> {
-            readiness.set(ar.succeeded());
-            handler.handle(ar);
-        };
+    // A query rejected because the connection pool is saturated says nothing about whether the database is reachable
+    private void recordHealth(AsyncResult<?> ar, boolean probe, long start) {
+        if (ar.failed() && AdmissionControlledPgPool.isRejection(ar.cause())) {
+            healthMonitor.release(probe);
+            return;
+        }
+        healthMonitor.record(probe, ar.succeeded(), start);
+    }
+
+    /**
+     * @return the handler to pass on to the delegate, or null if the circuit is open and the handler has been failed
+     */
+    private <T> Handler<AsyncResult<T>> admit(Handler<AsyncResult<T>> handler) {
+        int permit = healthMonitor.tryAcquire();
+        if (permit != PgHealthMonitor.REJECTED) {
+            return track(handler, permit == PgHealthMonitor.PROBE);
+        }
+        handler.handle(Future.failedFuture(new StatusException(Status.UNAVAILABLE.withDescription("Database circuit is open"))));
+        return null;
     }
 
     @Override
     public PgPool preparedQuery(String sql, Handler<AsyncResult<RowSet<Row>>> handler) {
-        return delegate.preparedQuery(sql, handleRowSet(handler));
+        Handler<AsyncResult<RowSet<Row>>> tracked = admit(handler);
+        if (tracked != null) {
+            delegate.preparedQuery(sql, tracked);
+        }
+        return this;
     }
 
     @Override
     public <R> PgPool preparedQuery(String sql, Collector<Row, ?, R> collector, Handler<AsyncResult<SqlResult<R>>> handler) {
-        return delegate.preparedQuery(sql, collector, handleSqlResult(handler));
+        Handler<AsyncResult<SqlResult<R>>> tracked = admit(handler);
+        if (tracked != null) {
+            delegate.preparedQuery(sql, collector, tracked);
+        }
+        return this;
     }
 
     @Override
     public PgPool query(String sql, Handler<AsyncResult<RowSet<Row>>> handler) {
-        return delegate.query(sql, handleRowSet(handler));
+        Handler<AsyncResult<RowSet<Row>>> tracked = admit(handler);
+        if (tracked != null) {
+            delegate.query(sql, tracked);
+        }
+        return this;
     }
 
     @Override
     public <R> PgPool query(String sql, Collector<Row, ?, R> collector, Handler<AsyncResult<SqlResult<R>>> handler) {
-        return delegate.query(sql, collector, handleSqlResult(handler));
+        Handler<AsyncResult<SqlResult<R>>> tracked = admit(handler);
+        if (tracked != null) {
+            delegate.query(sql, collector, tracked);
+        }
+        return this;
     }
 
     @Override
     public PgPool preparedQuery(String sql, Tuple arguments, Handler<AsyncResult<RowSet<Row>>> handler) {
-        return delegate.preparedQuery(sql, arguments, handleRowSet(handler));
+        Handler<AsyncResult<RowSet<Row>>> tracked = admit(handler);
+        if (tracked != null) {
+            delegate.preparedQuery(sql, arguments, tracked);
+        }
+        return this;
     }
 
     @Override
     public <R> PgPool preparedQuery(String sql, Tuple arguments, Collector<Row, ?, R> collector, Handler<AsyncResult<SqlResult<R>>> handler) {
-        return delegate.preparedQuery(sql, arguments, collector, handleSqlResult(handler));
+        Handler<AsyncResult<SqlResult<R>>> tracked = admit(handler);
+        if (tracked != null) {
+            delegate.preparedQuery(sql, arguments, collector, tracked);
+        }
+        return this;
     }
 
     @Override
     public PgPool preparedBatch(String sql, List<Tuple> batch, Handler<AsyncResult<RowSet<Row>>> handler) {
-        return delegate.preparedBatch(sql, batch, handleRowSet(handler));
+        Handler<AsyncResult<RowSet<Row>>> tracked = admit(handler);
+        if (tracked != null) {
+            delegate.preparedBatch(sql, batch, tracked);
+        }
+        return this;
     }
 
     @Override
     public <R> PgPool preparedBatch(String sql, List<Tuple> batch, Collector<Row, ?, R> collector, Handler<AsyncResult<SqlResult<R>>> handler) {
-        return delegate.preparedBatch(sql, batch, collector, handleSqlResult(handler));
+        Handler<AsyncResult<SqlResult<R>>> tracked = admit(handler);
+        if (tracked != null) {
+            delegate.preparedBatch(sql, batch, collector, tracked);
+        }
+        return this;
     }
 
     @Override
     public void getConnection(Handler<AsyncResult<SqlConnection>> handler) {
-        delegate.getConnection(handler);
+        Handler<AsyncResult<SqlConnection>> tracked = admit(handler);
+        if (tracked != null) {
+            delegate.getConnection(tracked);
+        }
     }
 
     @Override
     public void begin(Handler<AsyncResult<Transaction>> handler) {
-        delegate.begin(handler);
+        Handler<AsyncResult<Transaction>> tracked = admit(handler);
+        if (tracked != null) {
+            delegate.begin(tracked);
+        }
     }
 
     @Override
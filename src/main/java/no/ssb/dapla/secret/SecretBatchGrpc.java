@@ -0,0 +1,141 @@
+package no.ssb.dapla.secret;
+
+import io.grpc.BindableService;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.Status;
+import io.grpc.protobuf.ProtoUtils;
+import no.ssb.dapla.secret.service.protobuf.GetSecretsRequest;
+import no.ssb.dapla.secret.service.protobuf.GetSecretsResponse;
+import no.ssb.dapla.secret.service.protobuf.Secret;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Secrets of many datasets in one call. The client sends one GetSecretsRequest per dataset and half-closes, and gets
+ * one GetSecretsResponse per request back, in request order. The response of a dataset that could not be read is
+ * empty, and its status code is listed in the {@code secret-batch-errors} trailer as a comma separated list of
+ * url-encoded {@code datasetPath=CODE} pairs. The secret-service protobuf contract is versioned in a separate module,
+ * so the method is described here with the existing GetSecrets messages.
+ */
+public class SecretBatchGrpc implements BindableService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SecretBatchGrpc.class);
+
+    public static final String SERVICE_NAME = "dapla.secret.SecretBatchService";
+
+    public static final MethodDescriptor<GetSecretsRequest, GetSecretsResponse> GET_SECRETS_BATCH_METHOD = MethodDescriptor.<GetSecretsRequest, GetSecretsResponse>newBuilder()
+            .setType(MethodDescriptor.MethodType.BIDI_STREAMING)
+            .setFullMethodName(MethodDescriptor.generateFullMethodName(SERVICE_NAME, "GetSecretsBatch"))
+            .setRequestMarshaller(ProtoUtils.marshaller(GetSecretsRequest.getDefaultInstance()))
+            .setResponseMarshaller(ProtoUtils.marshaller(GetSecretsResponse.getDefaultInstance()))
+            .build();
+
+    public static final Metadata.Key<String> SECRET_BATCH_ERRORS_TRAILER = Metadata.Key.of("secret-batch-errors", Metadata.ASCII_STRING_MARSHALLER);
+
+    final SecretServiceGrpc secretService;
+    final StageMetrics metrics;
+    final int maxDatasets;
+
+    public SecretBatchGrpc(SecretServiceGrpc secretService, StageMetrics metrics, int maxDatasets) {
+        this.secretService = secretService;
+        this.metrics = metrics;
+        this.maxDatasets = maxDatasets;
+    }
+
+    @Override
+    public ServerServiceDefinition bindService() {
+        return ServerServiceDefinition.builder(SERVICE_NAME)
+                .addMethod(GET_SECRETS_BATCH_METHOD, new GetSecretsBatchHandler())
+                .build();
+    }
+
+    class GetSecretsBatchHandler implements ServerCallHandler<GetSecretsRequest, GetSecretsResponse> {
+
+        @Override
+        public ServerCall.Listener<GetSecretsRequest> startCall(ServerCall<GetSecretsRequest, GetSecretsResponse> call, Metadata headers) {
+            long start = System.nanoTime();
+            CallScope scope = CallScope.current();
+            List<String> datasetPaths = new ArrayList<>();
+            call.request(1);
+            return new ServerCall.Listener<>() {
+                @Override
+                public void onMessage(GetSecretsRequest request) {
+                    if (datasetPaths.size() >= maxDatasets) {
+                        scope.cancel();
+                        call.close(Status.INVALID_ARGUMENT.withDescription(String.format("At most %d datasets per batch", maxDatasets)), new Metadata());
+                        return;
+                    }
+                    datasetPaths.add(request.getDatasetPath());
+                    call.request(1);
+                }
+
+                @Override
+                public void onHalfClose() {
+                    if (scope.isCancelled()) {
+                        return;
+                    }
+                    Map<String, Status> errors = new LinkedHashMap<>();
+                    metrics.time("rpc.getSecretsBatch", start, secretService.getSecretsBatch(datasetPaths, errors, scope))
+                            .whenComplete((secretsByDataset, throwable) -> {
+                                if (scope.isCancelled()) {
+                                    return;
+                                }
+                                if (throwable != null) {
+                                    LOG.error("Failed during getSecretsBatch", throwable);
+                                    call.close(SecretServiceGrpc.statusOf(throwable), new Metadata());
+                                    return;
+                                }
+                                call.sendHeaders(new Metadata());
+                                for (String datasetPath : datasetPaths) {
+                                    Set<Secret> secrets = secretsByDataset.getOrDefault(datasetPath, Set.of());
+                                    metrics.secretCount("getSecretsBatch", secrets.size());
+                                    call.sendMessage(GetSecretsResponse.newBuilder().addAllSecrets(secrets).build());
+                                }
+                                Metadata trailers = new Metadata();
+                                if (!errors.isEmpty()) {
+                                    trailers.put(SECRET_BATCH_ERRORS_TRAILER, encodeErrors(errors));
+                                }
+                                call.close(Status.OK, trailers);
+                            });
+                }
+
+                @Override
+                public void onCancel() {
+                    scope.cancel();
+                }
+            };
+        }
+    }
+
+    static String encodeErrors(Map<String, Status> errors) {
+        return errors.entrySet().stream()
+                .map(entry -> URLEncoder.encode(entry.getKey(), StandardCharsets.UTF_8) + "=" + entry.getValue().getCode().name())
+                .collect(Collectors.joining(","));
+    }
+
+    public static Map<String, Status.Code> decodeErrors(String errors) {
+        Map<String, Status.Code> result = new LinkedHashMap<>();
+        if (errors == null || errors.isBlank()) {
+            return result;
+        }
+        for (String pair : errors.split(",")) {
+            int separator = pair.lastIndexOf('=');
+            result.put(URLDecoder.decode(pair.substring(0, separator), StandardCharsets.UTF_8), Status.Code.valueOf(pair.substring(separator + 1)));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,70 @@
+package no.ssb.dapla.secret;
+
+import io.vertx.sqlclient.Row;
+import io.vertx.sqlclient.RowStream;
+import io.vertx.sqlclient.SqlConnection;
+import io.vertx.sqlclient.Transaction;
+import no.ssb.dapla.secret.service.protobuf.Secret;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Secrets read through a database cursor that fetches a bounded number of rows at a time. The cursor keeps a
+ * connection and a transaction open until it has ended, failed or been closed.
+ */
+public class SecretCursor implements AutoCloseable {
+
+    private final SqlConnection connection;
+    private final Transaction transaction;
+    private final RowStream<Row> rowStream;
+    private final SecretEncryption encryption;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    SecretCursor(SqlConnection connection, Transaction transaction, RowStream<Row> rowStream, SecretEncryption encryption) {
+        this.connection = connection;
+        this.transaction = transaction;
+        this.rowStream = rowStream;
+        this.encryption = encryption;
+    }
+
+    public void start(Consumer<Secret> onSecret, Runnable onEnd, Consumer<Throwable> onError) {
+        rowStream.exceptionHandler(throwable -> {
+            close();
+            onError.accept(throwable);
+        });
+        rowStream.endHandler(v -> {
+            close();
+            onEnd.run();
+        });
+        rowStream.handler(row -> {
+            Secret secret;
+            try {
+                secret = SecretRowCodec.decode(row, encryption);
+            } catch (RuntimeException e) {
+                close();
+                onError.accept(e);
+                return;
+            }
+            onSecret.accept(secret);
+        });
+    }
+
+    public void pause() {
+        rowStream.pause();
+    }
+
+    public void resume() {
+        rowStream.resume();
+    }
+
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        rowStream.close();
+        transaction.rollback();
+        connection.close();
+    }
+}
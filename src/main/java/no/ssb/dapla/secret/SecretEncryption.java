@@ -0,0 +1,239 @@
+package no.ssb.dapla.secret;
+
+import io.helidon.config.Config;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.pgclient.PgPool;
+import io.vertx.sqlclient.Row;
+import io.vertx.sqlclient.Transaction;
+import io.vertx.sqlclient.Tuple;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Envelope encryption of secret content with AES-GCM. Content is encrypted with a data key that is held in memory,
+ * and the data key is stored in the secret_data_key table wrapped by a key-encryption key read from a local file or
+ * keystore. The stored content is the 12 byte IV followed by the ciphertext and tag, and the secret id and type are
+ * authenticated as associated data so that content cannot be moved between rows. Ciphers are reused per thread.
+ * Without a configured key-encryption key, content is stored in plaintext.
+ */
+public class SecretEncryption {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SecretEncryption.class);
+
+    static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    static final int IV_LENGTH = 12;
+    static final int TAG_LENGTH_BITS = 128;
+    private static final byte[] DATA_KEY_AAD = "secret_data_key".getBytes(StandardCharsets.UTF_8);
+
+    static final String LOCK_DATA_KEYS = "SELECT pg_advisory_xact_lock(hashtext('secret_data_key'))";
+    static final String SELECT_DATA_KEYS = "SELECT id, wrapped_key FROM secret_data_key ORDER BY id";
+    static final String INSERT_DATA_KEY = "INSERT INTO secret_data_key (wrapped_key) VALUES ($1) RETURNING id";
+
+    private static final ThreadLocal<Cipher> CIPHERS = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance(TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final SecretKey keyEncryptionKey;
+    private final Map<Integer, SecretKey> dataKeys = new ConcurrentHashMap<>();
+    private final SecureRandom secureRandom = new SecureRandom();
+    private volatile Integer currentKeyId;
+
+    SecretEncryption(SecretKey keyEncryptionKey) {
+        this.keyEncryptionKey = keyEncryptionKey;
+    }
+
+    /**
+     * Data keys that are already unwrapped, for benchmarks and tests.
+     */
+    SecretEncryption(Map<Integer, SecretKey> dataKeys, int currentKeyId) {
+        this.keyEncryptionKey = null;
+        this.dataKeys.putAll(dataKeys);
+        this.currentKeyId = currentKeyId;
+    }
+
+    public static SecretEncryption create(Config config) {
+        try {
+            if (config.get("kek-file").exists()) {
+                Path path = Path.of(config.get("kek-file").asString().get());
+                byte[] key = Base64.getDecoder().decode(Files.readString(path, StandardCharsets.US_ASCII).trim());
+                return new SecretEncryption(new SecretKeySpec(key, "AES"));
+            }
+            if (config.get("keystore.path").exists()) {
+                char[] password = config.get("keystore.password").asString().orElse("").toCharArray();
+                KeyStore keyStore = KeyStore.getInstance(config.get("keystore.type").asString().orElse("PKCS12"));
+                try (InputStream in = Files.newInputStream(Path.of(config.get("keystore.path").asString().get()))) {
+                    keyStore.load(in, password);
+                }
+                String alias = config.get("keystore.alias").asString().orElse("secret-service-kek");
+                return new SecretEncryption((SecretKey) keyStore.getKey(alias, password));
+            }
+        } catch (IOException | GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to read the key-encryption key", e);
+        }
+        LOG.warn("No key-encryption key is configured, secret content is stored in plaintext");
+        return disabled();
+    }
+
+    public static SecretEncryption disabled() {
+        return new SecretEncryption((SecretKey) null);
+    }
+
+    public boolean isEnabled() {
+        return currentKeyId != null;
+    }
+
+    /**
+     * Unwraps all stored data keys, and creates the first one if there are none. Instances that start at the same
+     * time are serialized by an advisory lock, so that they all end up with the same data key.
+     */
+    public CompletableFuture<Void> loadDataKeys(PgPool pgClient) {
+        if (keyEncryptionKey == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        pgClient.begin(beginResult -> {
+            if (beginResult.failed()) {
+                future.completeExceptionally(beginResult.cause());
+                return;
+            }
+            Transaction transaction = beginResult.result();
+            transaction.query(LOCK_DATA_KEYS, lockResult -> {
+                if (lockResult.failed()) {
+                    transaction.rollback();
+                    future.completeExceptionally(lockResult.cause());
+                    return;
+                }
+                transaction.query(SELECT_DATA_KEYS, selectResult -> {
+                    if (selectResult.failed()) {
+                        transaction.rollback();
+                        future.completeExceptionally(selectResult.cause());
+                        return;
+                    }
+                    try {
+                        for (Row row : selectResult.result()) {
+                            dataKeys.put(row.getInteger(0), new SecretKeySpec(decrypt(keyEncryptionKey, row.getBuffer(1).getBytes(), DATA_KEY_AAD), "AES"));
+                            currentKeyId = row.getInteger(0);
+                        }
+                    } catch (GeneralSecurityException e) {
+                        transaction.rollback();
+                        future.completeExceptionally(new IllegalStateException("Unable to unwrap data key, is the right key-encryption key configured?", e));
+                        return;
+                    }
+                    if (currentKeyId != null) {
+                        transaction.rollback();
+                        future.complete(null);
+                        return;
+                    }
+                    createDataKey(transaction, future);
+                });
+            });
+        });
+        return future.orTimeout(5, TimeUnit.SECONDS);
+    }
+
+    private void createDataKey(Transaction transaction, CompletableFuture<Void> future) {
+        SecretKey dataKey;
+        byte[] wrappedKey;
+        try {
+            KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+            keyGenerator.init(256);
+            dataKey = keyGenerator.generateKey();
+            wrappedKey = encrypt(keyEncryptionKey, dataKey.getEncoded(), DATA_KEY_AAD);
+        } catch (GeneralSecurityException e) {
+            transaction.rollback();
+            future.completeExceptionally(e);
+            return;
+        }
+        transaction.preparedQuery(INSERT_DATA_KEY, Tuple.of(Buffer.buffer(wrappedKey)), insertResult -> {
+            if (insertResult.failed()) {
+                transaction.rollback();
+                future.completeExceptionally(insertResult.cause());
+                return;
+            }
+            int keyId = insertResult.result().iterator().next().getInteger(0);
+            transaction.commit(commitResult -> {
+                if (commitResult.failed()) {
+                    future.completeExceptionally(commitResult.cause());
+                    return;
+                }
+                dataKeys.put(keyId, dataKey);
+                currentKeyId = keyId;
+                LOG.info("Created data key {}", keyId);
+                future.complete(null);
+            });
+        });
+    }
+
+    /**
+     * @return the id of the data key new content is encrypted with, or null if encryption is disabled
+     */
+    Integer currentKeyId() {
+        return currentKeyId;
+    }
+
+    byte[] encrypt(String id, String type, byte[] content) {
+        try {
+            return encrypt(dataKeys.get(currentKeyId), content, associatedData(id, type));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(String.format("Unable to encrypt secret %s", id), e);
+        }
+    }
+
+    byte[] decrypt(String id, String type, int keyId, byte[] content) {
+        SecretKey dataKey = dataKeys.get(keyId);
+        if (dataKey == null) {
+            throw new IllegalStateException(String.format("Secret %s is encrypted with unknown data key %d", id, keyId));
+        }
+        try {
+            return decrypt(dataKey, content, associatedData(id, type));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(String.format("Unable to decrypt secret %s", id), e);
+        }
+    }
+
+    private byte[] encrypt(SecretKey key, byte[] plaintext, byte[] associatedData) throws GeneralSecurityException {
+        byte[] iv = new byte[IV_LENGTH];
+        secureRandom.nextBytes(iv);
+        Cipher cipher = CIPHERS.get();
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH_BITS, iv));
+        cipher.updateAAD(associatedData);
+        byte[] result = Arrays.copyOf(iv, IV_LENGTH + cipher.getOutputSize(plaintext.length));
+        cipher.doFinal(plaintext, 0, plaintext.length, result, IV_LENGTH);
+        return result;
+    }
+
+    private static byte[] decrypt(SecretKey key, byte[] content, byte[] associatedData) throws GeneralSecurityException {
+        Cipher cipher = CIPHERS.get();
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH_BITS, content, 0, IV_LENGTH));
+        cipher.updateAAD(associatedData);
+        return cipher.doFinal(content, IV_LENGTH, content.length - IV_LENGTH);
+    }
+
+    private static byte[] associatedData(String id, String type) {
+        return (id + '\0' + type).getBytes(StandardCharsets.UTF_8);
+    }
+}
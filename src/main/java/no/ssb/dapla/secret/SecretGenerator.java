@@ -5,21 +5,26 @@ import no.ssb.dapla.secret.service.protobuf.Secret;
 
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
+import java.security.NoSuchAlgorithmException;
 
 public class SecretGenerator {
 
     public static Secret generate(String secretId, String type) {
-        int keyLength = 32;
         try {
-            keyLength = Integer.parseInt(type.replace("AES", ""));
-        } catch (Exception e) { /* swallow */ }
-        try {
-            KeyGenerator keyGen = KeyGenerator.getInstance("AES");
-            keyGen.init(keyLength);
-            SecretKey secretKey = keyGen.generateKey();
+            SecretKey secretKey = keyGenerator(type).generateKey();
             return Secret.newBuilder().setId(secretId).setType(type).setContent(ByteString.copyFrom(secretKey.getEncoded())).build();
         } catch (Exception e) {
             throw new RuntimeException(String.format("Unable to create secret of type %s", type), e);
         }
     }
+
+    static KeyGenerator keyGenerator(String type) throws NoSuchAlgorithmException {
+        int keyLength = 32;
+        try {
+            keyLength = Integer.parseInt(type.replace("AES", ""));
+        } catch (Exception e) { /* swallow */ }
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(keyLength);
+        return keyGen;
+    }
 }
@@ -0,0 +1,130 @@
+package no.ssb.dapla.secret;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.UnsafeByteOperations;
+import io.helidon.config.Config;
+import no.ssb.dapla.secret.service.protobuf.Secret;
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.Gauge;
+import org.eclipse.microprofile.metrics.Metadata;
+import org.eclipse.microprofile.metrics.MetricID;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.MetricType;
+import org.eclipse.microprofile.metrics.Tag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.KeyGenerator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Pool of pre-generated key material for the configured secret types. Pools are refilled up to the high watermark on
+ * a dedicated thread whenever they drop below the low watermark. Secrets of other types, or of a type whose pool is
+ * empty, are generated inline by {@link SecretGenerator}.
+ */
+public class SecretKeyPool implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SecretKeyPool.class);
+
+    private final int lowWatermark;
+    private final int highWatermark;
+    private final ExecutorService refillExecutor;
+    private final Counter misses;
+    private final Map<String, TypePool> pools;
+
+    public SecretKeyPool(Config config, MetricRegistry metricRegistry) {
+        this(config, metricRegistry, Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("secret-key-pool-%d")
+                .setDaemon(true)
+                .build()));
+    }
+
+    SecretKeyPool(Config config, MetricRegistry metricRegistry, ExecutorService refillExecutor) {
+        this.lowWatermark = config.get("low-watermark").asInt().orElse(64);
+        this.highWatermark = config.get("high-watermark").asInt().orElse(256);
+        this.refillExecutor = refillExecutor;
+        this.misses = metricRegistry.counter("secret.keypool.misses");
+        this.pools = config.get("types").asList(String.class).orElse(List.of()).stream()
+                .distinct()
+                .collect(Collectors.toUnmodifiableMap(Function.identity(), TypePool::new));
+        Metadata depthMetadata = Metadata.builder()
+                .withName("secret.keypool.depth")
+                .withType(MetricType.GAUGE)
+                .build();
+        for (TypePool pool : pools.values()) {
+            // the registry is shared by every application built in the jvm, and a gauge cannot be registered twice
+            metricRegistry.remove(new MetricID("secret.keypool.depth", new Tag("type", pool.type)));
+            metricRegistry.register(depthMetadata, (Gauge<Integer>) pool.depth::get, new Tag("type", pool.type));
+            pool.refillIfNeeded();
+        }
+    }
+
+    public Secret generate(String secretId, String type) {
+        TypePool pool = pools.get(type);
+        byte[] key = pool == null ? null : pool.take();
+        if (key == null) {
+            misses.inc();
+            return SecretGenerator.generate(secretId, type);
+        }
+        return Secret.newBuilder().setId(secretId).setType(type).setContent(UnsafeByteOperations.unsafeWrap(key)).build();
+    }
+
+    @Override
+    public void close() {
+        refillExecutor.shutdownNow();
+    }
+
+    private class TypePool {
+        final String type;
+        final Queue<byte[]> keys = new ConcurrentLinkedQueue<>();
+        final AtomicInteger depth = new AtomicInteger();
+        final AtomicBoolean refilling = new AtomicBoolean();
+
+        TypePool(String type) {
+            this.type = type;
+        }
+
+        byte[] take() {
+            byte[] key = keys.poll();
+            if (key != null) {
+                depth.decrementAndGet();
+            }
+            refillIfNeeded();
+            return key;
+        }
+
+        void refillIfNeeded() {
+            if (depth.get() < lowWatermark && refilling.compareAndSet(false, true)) {
+                try {
+                    refillExecutor.execute(this::refill);
+                } catch (RejectedExecutionException e) {
+                    refilling.set(false);
+                }
+            }
+        }
+
+        void refill() {
+            try {
+                KeyGenerator keyGenerator = SecretGenerator.keyGenerator(type);
+                while (depth.get() < highWatermark && !Thread.currentThread().isInterrupted()) {
+                    keys.add(keyGenerator.generateKey().getEncoded());
+                    depth.incrementAndGet();
+                }
+            } catch (Exception e) {
+                LOG.warn(String.format("Unable to refill key pool for secret type %s", type), e);
+            } finally {
+                refilling.set(false);
+            }
+        }
+    }
+}
@@ -1,57 +1,155 @@
 package no.ssb.dapla.secret;
 
-import io.vertx.core.json.Json;
-import io.vertx.core.json.JsonObject;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.grpc.Status;
+import io.grpc.StatusException;
+import io.vertx.core.buffer.Buffer;
 import io.vertx.pgclient.PgPool;
 import io.vertx.sqlclient.Row;
 import io.vertx.sqlclient.RowIterator;
+import io.vertx.sqlclient.RowSet;
+import io.vertx.sqlclient.RowStream;
+import io.vertx.sqlclient.SqlConnection;
+import io.vertx.sqlclient.Transaction;
 import io.vertx.sqlclient.Tuple;
 import no.ssb.dapla.secret.service.protobuf.Secret;
-import no.ssb.helidon.media.protobuf.ProtobufJsonUtils;
+import no.ssb.dapla.secret.service.protobuf.SecretRef;
 
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+/**
+ * Writes always go to the primary. When a read replica is given, reads go to the replica, except reads of ids that
+ * this instance has written within the read-your-writes window, which may not have reached the replica yet. Ids that
+ * the replica does not have are read again from the primary, as they may have just been written by another instance.
+ */
 public class SecretRepository {
 
+    static final String INSERT_SECRET = "INSERT INTO secret (id, type, content, key_id) VALUES($1, $2, $3, $4) ON CONFLICT (id) WHERE latest DO NOTHING";
+    static final String CREATE_OR_GET_SECRETS = "WITH input AS (SELECT * FROM unnest($1::varchar[], $2::varchar[], $3::bytea[], $4::int[]) AS t(id, type, content, key_id)), " +
+            "inserted AS (INSERT INTO secret (id, type, content, key_id) SELECT id, type, content, key_id FROM input ON CONFLICT (id) WHERE latest DO NOTHING RETURNING id, type, content, key_id) " +
+            "SELECT id, type, content, key_id FROM inserted " +
+            "UNION ALL " +
+            "SELECT s.id, s.type, s.content, s.key_id FROM secret s JOIN input i ON s.id = i.id WHERE s.latest";
+    static final String SELECT_SECRETS = "SELECT id, type, content, key_id FROM secret WHERE id = ANY ($1) AND latest";
+    static final String SELECT_SECRETS_AT_VERSIONS = "SELECT s.id, s.type, s.content, s.key_id FROM secret s " +
+            "JOIN unnest($1::varchar[], $2::bigint[]) AS v(id, version) ON s.id = v.id AND s.version = v.version";
+    static final String SELECT_SECRET_VERSIONS = "SELECT id, version FROM secret WHERE id = ANY ($1) AND latest";
+    static final String SELECT_SECRETS_BY_PREFIX = "SELECT id, type, content, key_id FROM secret WHERE id LIKE $1 AND latest ORDER BY id";
+    static final String SELECT_RETIRED_SECRET_BY_PREFIX = "SELECT id FROM secret WHERE id LIKE $1 AND NOT latest LIMIT 1";
+    static final String SELECT_SECRET = "SELECT id, type, content, key_id FROM secret WHERE id = $1 AND latest";
+    // deletes all versions of the secret
+    static final String DELETE_SECRET = "DELETE FROM secret WHERE id = $1";
+    // rows locked by a concurrent batch, e.g. on another instance, are left to that batch
+    static final String SELECT_PLAINTEXT_SECRETS = "SELECT id, type, content, key_id, version FROM secret WHERE key_id IS NULL LIMIT $1 FOR UPDATE SKIP LOCKED";
+    static final String ENCRYPT_SECRET = "UPDATE secret SET content = $2, key_id = $3 WHERE id = $1 AND version = $4 AND key_id IS NULL";
+    static final String NEXT_VERSION = "SELECT nextval('secret_version_seq')";
+    static final String SELECT_SECRETS_TO_ROTATE = "SELECT id, type FROM secret WHERE id LIKE $1 AND latest AND version < $2 ORDER BY id LIMIT $3";
+    static final String RETIRE_SECRETS = "UPDATE secret SET latest = false WHERE id = ANY ($1) AND latest AND version < $2 RETURNING id";
+
+    // every statement above, by the pool it runs on and with the ones run per request first; reads of recently written
+    // ids go to the primary as well
+    static final List<String> WRITE_STATEMENTS = List.of(INSERT_SECRET, CREATE_OR_GET_SECRETS, SELECT_SECRETS, SELECT_SECRETS_AT_VERSIONS,
+            SELECT_SECRET_VERSIONS, SELECT_SECRET, DELETE_SECRET, SELECT_PLAINTEXT_SECRETS, ENCRYPT_SECRET, NEXT_VERSION,
+            SELECT_SECRETS_TO_ROTATE, RETIRE_SECRETS);
+    static final List<String> READ_STATEMENTS = List.of(SELECT_SECRETS, SELECT_SECRETS_AT_VERSIONS, SELECT_SECRET_VERSIONS, SELECT_SECRET,
+            SELECT_SECRETS_BY_PREFIX, SELECT_RETIRED_SECRET_BY_PREFIX);
+    static final List<String> STATEMENTS = Stream.concat(WRITE_STATEMENTS.stream(), READ_STATEMENTS.stream()).distinct().collect(Collectors.toUnmodifiableList());
+
     final PgPool pgClient;
+    final PgPool readClient;
+    final StageMetrics metrics;
+    final SecretEncryption encryption;
+    final Cache<String, Boolean> recentWrites;
 
-    public SecretRepository(PgPool pgClient) {
+    public SecretRepository(PgPool pgClient, StageMetrics metrics) {
+        this(pgClient, null, Duration.ZERO, metrics, SecretEncryption.disabled());
+    }
+
+    public SecretRepository(PgPool pgClient, PgPool replicaClient, Duration readYourWritesWindow, StageMetrics metrics,
+                            SecretEncryption encryption) {
         this.pgClient = pgClient;
+        this.readClient = replicaClient == null ? pgClient : replicaClient;
+        this.metrics = metrics;
+        this.encryption = encryption;
+        this.recentWrites = replicaClient == null ? null : CacheBuilder.newBuilder()
+                .expireAfterWrite(readYourWritesWindow)
+                .maximumSize(100000)
+                .build();
     }
 
-    public CompletableFuture<Void> createSecrets(Secret... secrets) {
+    /**
+     * A repository on the same pools as the given one, that shares its read-your-writes window, for repositories
+     * that wrap another one.
+     */
+    SecretRepository(SecretRepository repository) {
+        this.pgClient = repository.pgClient;
+        this.readClient = repository.readClient;
+        this.metrics = repository.metrics;
+        this.encryption = repository.encryption;
+        this.recentWrites = repository.recentWrites;
+    }
+
+    private void markWritten(String... ids) {
+        if (recentWrites != null) {
+            for (String id : ids) {
+                recentWrites.put(id, Boolean.TRUE);
+            }
+        }
+    }
+
+    private boolean isRecentlyWritten(String id) {
+        return recentWrites != null && recentWrites.getIfPresent(id) != null;
+    }
+
+    /**
+     * Inserts the given secrets, leaving ids that already exist untouched.
+     *
+     * @return the number of secrets that were inserted
+     */
+    public CompletableFuture<Integer> createSecrets(Secret... secrets) {
+        long start = System.nanoTime();
+        markWritten(Arrays.stream(secrets).map(Secret::getId).toArray(String[]::new));
         List<Tuple> batch = Arrays.stream(secrets)
-                .map(secret -> {
-                    JsonObject value = (JsonObject) Json.decodeValue(ProtobufJsonUtils.toString(secret));
-                    return Tuple.tuple().addString(secret.getId()).addValue(value);
-                })
+                .map(secret -> SecretRowCodec.encode(secret, encryption))
                 .collect(Collectors.toList());
-        CompletableFuture<Void> future = new CompletableFuture<>();
+        CompletableFuture<Integer> future = new CompletableFuture<>();
         pgClient.preparedBatch(
-                "INSERT INTO secret (id, document) VALUES($1, $2) ON CONFLICT (id) DO NOTHING",
+                INSERT_SECRET,
                 batch,
                 asyncResult -> {
                     if (asyncResult.failed()) {
                         future.completeExceptionally(asyncResult.cause());
                         return;
                     }
-                    future.complete(null);
+                    // a batch has one result per statement
+                    int inserted = 0;
+                    for (RowSet<Row> rowSet = asyncResult.result(); rowSet != null; rowSet = rowSet.next()) {
+                        inserted += rowSet.rowCount();
+                    }
+                    future.complete(inserted);
                 });
-        return future.orTimeout(5, TimeUnit.SECONDS);
+        return metrics.time("db.createSecrets", start, future.orTimeout(5, TimeUnit.SECONDS));
     }
 
     public CompletableFuture<Void> createSecret(Secret secret) {
-        JsonObject value = (JsonObject) Json.decodeValue(ProtobufJsonUtils.toString(secret));
+        long start = System.nanoTime();
+        markWritten(secret.getId());
         CompletableFuture<Void> future = new CompletableFuture<>();
         pgClient.preparedQuery(
-                "INSERT INTO secret (id, document) VALUES($1, $2) ON CONFLICT (id) DO NOTHING",
-                Tuple.tuple().addString(secret.getId()).addValue(value),
+                INSERT_SECRET,
+                SecretRowCodec.encode(secret, encryption),
                 asyncResult -> {
                     if (asyncResult.failed()) {
                         future.completeExceptionally(asyncResult.cause());
@@ -59,13 +157,108 @@ public class SecretRepository {
                     }
                     future.complete(null);
                 });
-        return future.orTimeout(5, TimeUnit.SECONDS);
+        return metrics.time("db.createSecret", start, future.orTimeout(5, TimeUnit.SECONDS));
     }
 
-    public CompletableFuture<Set<Secret>> getSecrets(String... ids) {
+    /**
+     * Inserts the secrets that do not already exist and returns what is stored for all of the given ids, using a
+     * single statement. Ids inserted by a concurrent transaction are not visible to that statement, and are read back
+     * separately.
+     */
+    public CompletableFuture<Set<Secret>> createOrGetSecrets(Secret... secrets) {
+        long start = System.nanoTime();
+        String[] ids = new String[secrets.length];
+        String[] types = new String[secrets.length];
+        Buffer[] contents = new Buffer[secrets.length];
+        Integer[] keyIds = new Integer[secrets.length];
+        Integer keyId = encryption.currentKeyId();
+        for (int i = 0; i < secrets.length; i++) {
+            ids[i] = secrets[i].getId();
+            types[i] = secrets[i].getType();
+            contents[i] = Buffer.buffer(SecretRowCodec.encryptContent(secrets[i], encryption, keyId));
+            keyIds[i] = keyId;
+        }
+        markWritten(ids);
         CompletableFuture<Set<Secret>> future = new CompletableFuture<>();
         pgClient.preparedQuery(
-                "SELECT id, document FROM secret WHERE id = ANY ($1)",
+                CREATE_OR_GET_SECRETS,
+                Tuple.tuple().addStringArray(ids).addStringArray(types).addBufferArray(contents).addIntegerArray(keyIds),
+                asyncResult -> {
+                    if (asyncResult.failed()) {
+                        future.completeExceptionally(asyncResult.cause());
+                        return;
+                    }
+                    Set<Secret> storedSecrets = new HashSet<>();
+                    try {
+                        for (Row row : asyncResult.result()) {
+                            storedSecrets.add(SecretRowCodec.decode(row, encryption));
+                        }
+                    } catch (RuntimeException e) {
+                        future.completeExceptionally(e);
+                        return;
+                    }
+                    future.complete(storedSecrets);
+                }
+        );
+        return metrics.time("db.createOrGetSecrets", start, future.orTimeout(5, TimeUnit.SECONDS))
+                .thenCompose(storedSecrets -> {
+                    Set<String> storedIds = storedSecrets.stream().map(Secret::getId).collect(Collectors.toSet());
+                    String[] missingIds = Arrays.stream(ids).filter(id -> !storedIds.contains(id)).distinct().toArray(String[]::new);
+                    if (missingIds.length == 0) {
+                        return CompletableFuture.completedFuture(storedSecrets);
+                    }
+                    return selectSecrets(pgClient, missingIds).thenApply(concurrentlyStoredSecrets -> {
+                        storedSecrets.addAll(concurrentlyStoredSecrets);
+                        return storedSecrets;
+                    });
+                });
+    }
+
+    /**
+     * Returns those of the given secrets that can be returned without reading the database. This repository has
+     * none, see {@link CachingSecretRepository}.
+     */
+    public Set<Secret> getCachedSecrets(String... ids) {
+        return new HashSet<>();
+    }
+
+    public CompletableFuture<Set<Secret>> getSecrets(String... ids) {
+        Map<Boolean, List<String>> idsByPrimary = Arrays.stream(ids).collect(Collectors.partitioningBy(this::isRecentlyWritten));
+        if (idsByPrimary.get(true).isEmpty()) {
+            return selectReplicatedSecrets(ids);
+        }
+        if (idsByPrimary.get(false).isEmpty()) {
+            return selectSecrets(pgClient, ids);
+        }
+        return selectSecrets(pgClient, idsByPrimary.get(true).toArray(String[]::new))
+                .thenCombine(selectReplicatedSecrets(idsByPrimary.get(false).toArray(String[]::new)), (primarySecrets, replicaSecrets) -> {
+                    primarySecrets.addAll(replicaSecrets);
+                    return primarySecrets;
+                });
+    }
+
+    private CompletableFuture<Set<Secret>> selectReplicatedSecrets(String... ids) {
+        if (readClient == pgClient) {
+            return selectSecrets(pgClient, ids);
+        }
+        return selectSecrets(readClient, ids).thenCompose(secrets -> {
+            Set<String> foundIds = secrets.stream().map(Secret::getId).collect(Collectors.toSet());
+            String[] missingIds = Arrays.stream(ids).filter(id -> !foundIds.contains(id)).distinct().toArray(String[]::new);
+            if (missingIds.length == 0) {
+                return CompletableFuture.completedFuture(secrets);
+            }
+            return selectSecrets(pgClient, missingIds).thenApply(primarySecrets -> {
+                secrets.addAll(primarySecrets);
+                return secrets;
+            });
+        });
+    }
+
+    private CompletableFuture<Set<Secret>> selectSecrets(PgPool client, String... ids) {
+        long start = System.nanoTime();
+        CompletableFuture<Set<Secret>> future = new CompletableFuture<>();
+        client.preparedQuery(
+                SELECT_SECRETS,
                 Tuple.tuple().addStringArray(ids),
                 asyncResult -> {
                     if (asyncResult.failed()) {
@@ -73,20 +266,252 @@ public class SecretRepository {
                         return;
                     }
                     Set<Secret> secrets = new HashSet<>();
-                    for (Row row : asyncResult.result()) {
-                        JsonObject document = row.get(JsonObject.class, 1);
-                        secrets.add(ProtobufJsonUtils.toPojo(Json.encode(document), Secret.class));
+                    try {
+                        for (Row row : asyncResult.result()) {
+                            secrets.add(SecretRowCodec.decode(row, encryption));
+                        }
+                    } catch (RuntimeException e) {
+                        future.completeExceptionally(e);
+                        return;
                     }
                     future.complete(secrets);
                 }
         );
+        return metrics.time("db.getSecrets", start, future.orTimeout(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Returns the given versions of the secrets, whether or not they are still the latest.
+     */
+    public CompletableFuture<Set<Secret>> getSecretsAtVersions(Map<String, Long> versionsById) {
+        if (readClient == pgClient || versionsById.keySet().stream().anyMatch(this::isRecentlyWritten)) {
+            return selectSecretsAtVersions(pgClient, versionsById);
+        }
+        // the versions may have been read from the primary, and not have reached the replica yet
+        return selectSecretsAtVersions(readClient, versionsById).thenCompose(secrets -> {
+            Set<String> foundIds = secrets.stream().map(Secret::getId).collect(Collectors.toSet());
+            Map<String, Long> missingVersions = versionsById.entrySet().stream()
+                    .filter(entry -> !foundIds.contains(entry.getKey()))
+                    .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+            if (missingVersions.isEmpty()) {
+                return CompletableFuture.completedFuture(secrets);
+            }
+            return selectSecretsAtVersions(pgClient, missingVersions).thenApply(primarySecrets -> {
+                secrets.addAll(primarySecrets);
+                return secrets;
+            });
+        });
+    }
+
+    private CompletableFuture<Set<Secret>> selectSecretsAtVersions(PgPool client, Map<String, Long> versionsById) {
+        long start = System.nanoTime();
+        String[] ids = versionsById.keySet().toArray(String[]::new);
+        Long[] versions = Arrays.stream(ids).map(versionsById::get).toArray(Long[]::new);
+        CompletableFuture<Set<Secret>> future = new CompletableFuture<>();
+        client.preparedQuery(
+                SELECT_SECRETS_AT_VERSIONS,
+                Tuple.tuple().addStringArray(ids).addLongArray(versions),
+                asyncResult -> {
+                    if (asyncResult.failed()) {
+                        future.completeExceptionally(asyncResult.cause());
+                        return;
+                    }
+                    Set<Secret> secrets = new HashSet<>();
+                    try {
+                        for (Row row : asyncResult.result()) {
+                            secrets.add(SecretRowCodec.decode(row, encryption));
+                        }
+                    } catch (RuntimeException e) {
+                        future.completeExceptionally(e);
+                        return;
+                    }
+                    future.complete(secrets);
+                }
+        );
+        return metrics.time("db.getSecretsAtVersions", start, future.orTimeout(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Returns the current version of each of the given secrets that exist, without reading the secrets themselves.
+     */
+    public CompletableFuture<Map<String, Long>> getSecretVersions(String... ids) {
+        Map<Boolean, List<String>> idsByPrimary = Arrays.stream(ids).collect(Collectors.partitioningBy(this::isRecentlyWritten));
+        if (idsByPrimary.get(true).isEmpty()) {
+            return selectReplicatedSecretVersions(ids);
+        }
+        if (idsByPrimary.get(false).isEmpty()) {
+            return selectSecretVersions(pgClient, ids);
+        }
+        return selectSecretVersions(pgClient, idsByPrimary.get(true).toArray(String[]::new))
+                .thenCombine(selectReplicatedSecretVersions(idsByPrimary.get(false).toArray(String[]::new)), (primaryVersions, replicaVersions) -> {
+                    primaryVersions.putAll(replicaVersions);
+                    return primaryVersions;
+                });
+    }
+
+    private CompletableFuture<Map<String, Long>> selectReplicatedSecretVersions(String... ids) {
+        if (readClient == pgClient) {
+            return selectSecretVersions(pgClient, ids);
+        }
+        return selectSecretVersions(readClient, ids).thenCompose(versions -> {
+            String[] missingIds = Arrays.stream(ids).filter(id -> !versions.containsKey(id)).distinct().toArray(String[]::new);
+            if (missingIds.length == 0) {
+                return CompletableFuture.completedFuture(versions);
+            }
+            return selectSecretVersions(pgClient, missingIds).thenApply(primaryVersions -> {
+                versions.putAll(primaryVersions);
+                return versions;
+            });
+        });
+    }
+
+    private CompletableFuture<Map<String, Long>> selectSecretVersions(PgPool client, String... ids) {
+        long start = System.nanoTime();
+        CompletableFuture<Map<String, Long>> future = new CompletableFuture<>();
+        client.preparedQuery(
+                SELECT_SECRET_VERSIONS,
+                Tuple.tuple().addStringArray(ids),
+                asyncResult -> {
+                    if (asyncResult.failed()) {
+                        future.completeExceptionally(asyncResult.cause());
+                        return;
+                    }
+                    Map<String, Long> versions = new HashMap<>();
+                    for (Row row : asyncResult.result()) {
+                        versions.put(row.getString(0), row.getLong(1));
+                    }
+                    future.complete(versions);
+                }
+        );
+        return metrics.time("db.getSecretVersions", start, future.orTimeout(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Opens a cursor over all secrets whose id starts with the given prefix, in id order. The cursor holds a
+     * connection of the given pool until it is closed, so that should be a pool of its own rather than one that
+     * serves requests. Only the latest version of each secret is read, so the cursor is refused with
+     * FAILED_PRECONDITION if any of the secrets has retired versions, rather than leaving those out.
+     */
+    public CompletableFuture<SecretCursor> openSecretCursor(PgPool cursorClient, String idPrefix, int fetchSize) {
+        String pattern = likePrefix(idPrefix);
+        CompletableFuture<SecretCursor> future = new CompletableFuture<>();
+        cursorClient.getConnection(connectionResult -> {
+            if (connectionResult.failed()) {
+                future.completeExceptionally(connectionResult.cause());
+                return;
+            }
+            SqlConnection connection = connectionResult.result();
+            // postgres cursors only live within a transaction, which reads from one snapshot so that a secret cannot
+            // be rotated between the check for retired versions and the cursor
+            Transaction transaction = connection.begin();
+            transaction.query("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ", isolationResult -> {
+                if (isolationResult.failed()) {
+                    transaction.rollback();
+                    connection.close();
+                    future.completeExceptionally(isolationResult.cause());
+                    return;
+                }
+                transaction.preparedQuery(SELECT_RETIRED_SECRET_BY_PREFIX, Tuple.of(pattern), retiredResult -> {
+                    if (retiredResult.failed()) {
+                        transaction.rollback();
+                        connection.close();
+                        future.completeExceptionally(retiredResult.cause());
+                        return;
+                    }
+                    RowIterator<Row> retired = retiredResult.result().iterator();
+                    if (retired.hasNext()) {
+                        transaction.rollback();
+                        connection.close();
+                        String id = retired.next().getString(0);
+                        future.completeExceptionally(new StatusException(Status.FAILED_PRECONDITION
+                                .withDescription(String.format("Secret %s has retired versions, which cannot be exported", id))));
+                        return;
+                    }
+                    connection.prepare(SELECT_SECRETS_BY_PREFIX, prepareResult -> {
+                        if (prepareResult.failed()) {
+                            transaction.rollback();
+                            connection.close();
+                            future.completeExceptionally(prepareResult.cause());
+                            return;
+                        }
+                        RowStream<Row> rowStream = prepareResult.result().createStream(fetchSize, Tuple.of(pattern));
+                        rowStream.pause();
+                        future.complete(new SecretCursor(connection, transaction, rowStream, encryption));
+                    });
+                });
+            });
+        });
         return future.orTimeout(5, TimeUnit.SECONDS);
     }
 
+    private static String likePrefix(String idPrefix) {
+        return idPrefix.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%";
+    }
+
+    /**
+     * Opens the given number of connections on the primary pool and on the replica pool, if any, so that the pools
+     * are at their configured size before the first request arrives, and prepares the statements that are run on
+     * that pool on every connection. Each number must not be larger than the size of its pool, since every connection
+     * is held until all of them are open.
+     */
+    public CompletableFuture<Void> warmUp(int connections, int replicaConnections) {
+        if (readClient == pgClient) {
+            return warmUp(pgClient, connections, STATEMENTS);
+        }
+        return CompletableFuture.allOf(warmUp(pgClient, connections, WRITE_STATEMENTS), warmUp(readClient, replicaConnections, READ_STATEMENTS));
+    }
+
+    private static CompletableFuture<Void> warmUp(PgPool pool, int connections, List<String> statements) {
+        // All connections are held until every one is open, otherwise the pool would hand out the same one again
+        List<CompletableFuture<SqlConnection>> openedConnections = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            CompletableFuture<SqlConnection> opened = new CompletableFuture<>();
+            pool.getConnection(connectionResult -> {
+                if (connectionResult.failed()) {
+                    opened.completeExceptionally(connectionResult.cause());
+                    return;
+                }
+                SqlConnection connection = connectionResult.result();
+                CompletableFuture.allOf(statements.stream().map(sql -> prepare(connection, sql)).toArray(CompletableFuture[]::new))
+                        .whenComplete((aVoid, throwable) -> {
+                            if (throwable != null) {
+                                opened.completeExceptionally(throwable);
+                            } else {
+                                opened.complete(connection);
+                            }
+                        });
+            });
+            openedConnections.add(opened);
+        }
+        return CompletableFuture.allOf(openedConnections.toArray(CompletableFuture[]::new))
+                .whenComplete((aVoid, throwable) -> openedConnections.forEach(opened -> opened.thenAccept(SqlConnection::close)));
+    }
+
+    private static CompletableFuture<Void> prepare(SqlConnection connection, String sql) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        connection.prepare(sql, prepareResult -> {
+            if (prepareResult.failed()) {
+                future.completeExceptionally(prepareResult.cause());
+                return;
+            }
+            future.complete(null);
+        });
+        return future;
+    }
+
     public CompletableFuture<Secret> getSecret(String id) {
+        if (isRecentlyWritten(id) || readClient == pgClient) {
+            return selectSecret(pgClient, id);
+        }
+        return selectSecret(readClient, id)
+                .thenCompose(secret -> secret != null ? CompletableFuture.completedFuture(secret) : selectSecret(pgClient, id));
+    }
+
+    private CompletableFuture<Secret> selectSecret(PgPool client, String id) {
+        long start = System.nanoTime();
         CompletableFuture<Secret> future = new CompletableFuture<>();
-        pgClient.preparedQuery(
-                "SELECT id, document FROM secret WHERE id = $1",
+        client.preparedQuery(
+                SELECT_SECRET,
                 Tuple.tuple().addString(id),
                 asyncResult -> {
                     if (asyncResult.failed()) {
@@ -98,17 +523,21 @@ public class SecretRepository {
                         future.complete(null);
                         return;
                     }
-                    JsonObject document = iterator.next().get(JsonObject.class, 1);
-                    Secret secret = ProtobufJsonUtils.toPojo(Json.encode(document), Secret.class);
-                    future.complete(secret);
+                    try {
+                        future.complete(SecretRowCodec.decode(iterator.next(), encryption));
+                    } catch (RuntimeException e) {
+                        future.completeExceptionally(e);
+                    }
                 }
         );
-        return future.orTimeout(5, TimeUnit.SECONDS);
+        return metrics.time("db.getSecret", start, future.orTimeout(5, TimeUnit.SECONDS));
     }
 
     public CompletableFuture<Integer> deleteSecret(String id) {
+        long start = System.nanoTime();
+        markWritten(id);
         CompletableFuture<Integer> future = new CompletableFuture<>();
-        pgClient.preparedQuery("DELETE FROM secret WHERE id = $1",
+        pgClient.preparedQuery(DELETE_SECRET,
                 Tuple.tuple().addString(id),
                 asyncResult -> {
                     if (asyncResult.failed()) {
@@ -118,10 +547,178 @@ public class SecretRepository {
                     future.complete(asyncResult.result().rowCount());
                 }
         );
+        return metrics.time("db.deleteSecret", start, future.orTimeout(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Encrypts the content of secrets stored in plaintext with the current data key, one batch per transaction so that
+     * rows are only locked briefly, until there are none left.
+     *
+     * @return the number of secrets that were encrypted
+     */
+    public CompletableFuture<Integer> encryptPlaintextSecrets(int batchSize) {
+        if (!encryption.isEnabled()) {
+            return CompletableFuture.completedFuture(0);
+        }
+        return encryptPlaintextSecrets(batchSize, 0);
+    }
+
+    private CompletableFuture<Integer> encryptPlaintextSecrets(int batchSize, int encrypted) {
+        return encryptPlaintextBatch(batchSize).thenCompose(count -> count == 0
+                ? CompletableFuture.completedFuture(encrypted)
+                : encryptPlaintextSecrets(batchSize, encrypted + count));
+    }
+
+    private CompletableFuture<Integer> encryptPlaintextBatch(int batchSize) {
+        long start = System.nanoTime();
+        Integer keyId = encryption.currentKeyId();
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        pgClient.begin(beginResult -> {
+            if (beginResult.failed()) {
+                future.completeExceptionally(beginResult.cause());
+                return;
+            }
+            // the connection is returned to the pool when the transaction ends
+            Transaction transaction = beginResult.result();
+            transaction.preparedQuery(SELECT_PLAINTEXT_SECRETS, Tuple.of(batchSize), selectResult -> {
+                if (selectResult.failed()) {
+                    transaction.rollback();
+                    future.completeExceptionally(selectResult.cause());
+                    return;
+                }
+                List<Tuple> batch = new ArrayList<>();
+                try {
+                    for (Row row : selectResult.result()) {
+                        Secret secret = SecretRowCodec.decode(row, encryption);
+                        batch.add(Tuple.of(secret.getId(), Buffer.buffer(SecretRowCodec.encryptContent(secret, encryption, keyId)), keyId, row.getLong(4)));
+                    }
+                } catch (RuntimeException e) {
+                    transaction.rollback();
+                    future.completeExceptionally(e);
+                    return;
+                }
+                if (batch.isEmpty()) {
+                    transaction.rollback();
+                    future.complete(0);
+                    return;
+                }
+                transaction.preparedBatch(ENCRYPT_SECRET, batch, updateResult -> {
+                    if (updateResult.failed()) {
+                        transaction.rollback();
+                        future.completeExceptionally(updateResult.cause());
+                        return;
+                    }
+                    transaction.commit(commitResult -> {
+                        if (commitResult.failed()) {
+                            future.completeExceptionally(commitResult.cause());
+                            return;
+                        }
+                        future.complete(batch.size());
+                    });
+                });
+            });
+        });
+        return metrics.time("db.encryptPlaintextSecrets", start, future.orTimeout(30, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Returns a version that is higher than that of every secret stored so far, and lower than that of every secret
+     * stored from now on.
+     */
+    public CompletableFuture<Long> nextVersion() {
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        pgClient.preparedQuery(NEXT_VERSION, asyncResult -> {
+            if (asyncResult.failed()) {
+                future.completeExceptionally(asyncResult.cause());
+                return;
+            }
+            future.complete(asyncResult.result().iterator().next().getLong(0));
+        });
         return future.orTimeout(5, TimeUnit.SECONDS);
     }
 
+    /**
+     * Returns up to limit secrets, in id order, whose latest version is older than the given version. The rows are not
+     * locked, the secrets are only retired by {@link #rotateSecrets(long, Secret...)}.
+     */
+    public CompletableFuture<List<SecretRef>> getSecretsToRotate(String idPrefix, long beforeVersion, int limit) {
+        long start = System.nanoTime();
+        CompletableFuture<List<SecretRef>> future = new CompletableFuture<>();
+        pgClient.preparedQuery(
+                SELECT_SECRETS_TO_ROTATE,
+                Tuple.of(likePrefix(idPrefix), beforeVersion, limit),
+                asyncResult -> {
+                    if (asyncResult.failed()) {
+                        future.completeExceptionally(asyncResult.cause());
+                        return;
+                    }
+                    List<SecretRef> secretRefs = new ArrayList<>();
+                    for (Row row : asyncResult.result()) {
+                        secretRefs.add(SecretRef.newBuilder().setId(row.getString(0)).setType(row.getString(1)).build());
+                    }
+                    future.complete(secretRefs);
+                }
+        );
+        return metrics.time("db.getSecretsToRotate", start, future.orTimeout(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Stores the given secrets as the new latest versions of the secrets whose latest version is still older than
+     * the given version, in one short transaction. Secrets that were rotated or deleted concurrently are skipped.
+     *
+     * @return the ids of the secrets that were rotated
+     */
+    public CompletableFuture<List<String>> rotateSecrets(long beforeVersion, Secret... secrets) {
+        long start = System.nanoTime();
+        String[] ids = Arrays.stream(secrets).map(Secret::getId).toArray(String[]::new);
+        markWritten(ids);
+        Map<String, Tuple> newVersions = new HashMap<>();
+        for (Secret secret : secrets) {
+            newVersions.put(secret.getId(), SecretRowCodec.encode(secret, encryption));
+        }
+        CompletableFuture<List<String>> future = new CompletableFuture<>();
+        pgClient.begin(beginResult -> {
+            if (beginResult.failed()) {
+                future.completeExceptionally(beginResult.cause());
+                return;
+            }
+            Transaction transaction = beginResult.result();
+            transaction.preparedQuery(RETIRE_SECRETS, Tuple.tuple().addStringArray(ids).addLong(beforeVersion), retireResult -> {
+                if (retireResult.failed()) {
+                    transaction.rollback();
+                    future.completeExceptionally(retireResult.cause());
+                    return;
+                }
+                List<String> retiredIds = new ArrayList<>();
+                for (Row row : retireResult.result()) {
+                    retiredIds.add(row.getString(0));
+                }
+                if (retiredIds.isEmpty()) {
+                    transaction.rollback();
+                    future.complete(retiredIds);
+                    return;
+                }
+                transaction.preparedBatch(INSERT_SECRET, retiredIds.stream().map(newVersions::get).collect(Collectors.toList()), insertResult -> {
+                    if (insertResult.failed()) {
+                        transaction.rollback();
+                        future.completeExceptionally(insertResult.cause());
+                        return;
+                    }
+                    transaction.commit(commitResult -> {
+                        if (commitResult.failed()) {
+                            future.completeExceptionally(commitResult.cause());
+                            return;
+                        }
+                        future.complete(retiredIds);
+                    });
+                });
+            });
+        });
+        return metrics.time("db.rotateSecrets", start, future.orTimeout(5, TimeUnit.SECONDS));
+    }
+
     CompletableFuture<Void> deleteAllSecrets() {
+        long start = System.nanoTime();
         CompletableFuture<Void> future = new CompletableFuture<>();
         pgClient.query("TRUNCATE TABLE secret",
                 asyncResult -> {
@@ -132,6 +729,6 @@ public class SecretRepository {
                     future.complete(null);
                 }
         );
-        return future.orTimeout(5, TimeUnit.SECONDS);
+        return metrics.time("db.deleteAllSecrets", start, future.orTimeout(5, TimeUnit.SECONDS));
     }
 }
@@ -0,0 +1,123 @@
+package no.ssb.dapla.secret;
+
+import com.google.protobuf.StringValue;
+import com.google.protobuf.Struct;
+import com.google.protobuf.Value;
+import io.grpc.BindableService;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerInterceptors;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.Status;
+import io.grpc.protobuf.ProtoUtils;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.ServerCalls;
+import io.grpc.stub.StreamObserver;
+import io.helidon.config.Config;
+import no.ssb.dapla.secret.service.protobuf.Secret;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Rotation of secrets to new key material, for callers that pass the {@link AdminAuthorization} check. Every secret
+ * is given a new latest version, and earlier versions are kept so that datasets pseudonymized with them can still be
+ * read. Secrets are rotated in batches of bounded size, each in its own short transaction, so the secret table is
+ * never locked for long. The secret-service protobuf contract is versioned in a separate module, so the method is
+ * described here using the protobuf wrapper types.
+ */
+public class SecretRotationGrpc implements BindableService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SecretRotationGrpc.class);
+
+    public static final String SERVICE_NAME = "dapla.secret.SecretRotationService";
+
+    /**
+     * Rotates every secret whose id starts with the requested prefix, an empty prefix rotates all secrets. Only
+     * secrets whose latest version is older than the start of the call are rotated, so a rotation that is repeated
+     * after a failure continues where it stopped. Progress is streamed back as one Struct per batch with the fields
+     * batch, size and rotated.
+     */
+    public static final MethodDescriptor<StringValue, Struct> ROTATE_SECRETS_METHOD = MethodDescriptor.<StringValue, Struct>newBuilder()
+            .setType(MethodDescriptor.MethodType.SERVER_STREAMING)
+            .setFullMethodName(MethodDescriptor.generateFullMethodName(SERVICE_NAME, "RotateSecrets"))
+            .setRequestMarshaller(ProtoUtils.marshaller(StringValue.getDefaultInstance()))
+            .setResponseMarshaller(ProtoUtils.marshaller(Struct.getDefaultInstance()))
+            .build();
+
+    final SecretRepository repository;
+    final SecretKeyPool keyPool;
+    final StageMetrics metrics;
+    final AdminAuthorization adminAuthorization;
+    final int batchSize;
+
+    public SecretRotationGrpc(SecretRepository repository, SecretKeyPool keyPool, StageMetrics metrics, AdminAuthorization adminAuthorization,
+                              Config config) {
+        this.repository = repository;
+        this.keyPool = keyPool;
+        this.metrics = metrics;
+        this.adminAuthorization = adminAuthorization;
+        this.batchSize = config.get("batch-size").asInt().orElse(100);
+    }
+
+    @Override
+    public ServerServiceDefinition bindService() {
+        return ServerInterceptors.intercept(ServerServiceDefinition.builder(SERVICE_NAME)
+                .addMethod(ROTATE_SECRETS_METHOD, ServerCalls.asyncServerStreamingCall(this::rotateSecrets))
+                .build(), adminAuthorization);
+    }
+
+    void rotateSecrets(StringValue request, StreamObserver<Struct> responseObserver) {
+        long start = System.nanoTime();
+        ServerCallStreamObserver<Struct> serverObserver = (ServerCallStreamObserver<Struct>) responseObserver;
+        AtomicBoolean cancelled = new AtomicBoolean();
+        // the batch that is being written when the client cancels is completed, no further batches are started
+        serverObserver.setOnCancelHandler(() -> cancelled.set(true));
+
+        repository.nextVersion()
+                .thenCompose(beforeVersion -> rotateBatches(request.getValue(), beforeVersion, serverObserver, cancelled, 0, 0))
+                .whenComplete((rotated, throwable) -> {
+                    if (throwable != null) {
+                        metrics.record("rpc.rotateSecrets", StageMetrics.outcome(throwable), start);
+                        if (!cancelled.get()) {
+                            LOG.error("while rotating secrets", throwable);
+                            responseObserver.onError(Status.fromThrowable(throwable).asRuntimeException());
+                        }
+                        return;
+                    }
+                    LOG.info("Rotated {} secrets with prefix '{}'", rotated, request.getValue());
+                    metrics.record("rpc.rotateSecrets", StageMetrics.OK, start);
+                    responseObserver.onCompleted();
+                });
+    }
+
+    private CompletableFuture<Long> rotateBatches(String idPrefix, long beforeVersion, StreamObserver<Struct> responseObserver,
+                                                  AtomicBoolean cancelled, int batch, long rotated) {
+        if (cancelled.get()) {
+            return CompletableFuture.failedFuture(new CancellationException());
+        }
+        return repository.getSecretsToRotate(idPrefix, beforeVersion, batchSize)
+                .thenCompose(secretRefs -> {
+                    if (secretRefs.isEmpty()) {
+                        return CompletableFuture.completedFuture(rotated);
+                    }
+                    Secret[] secrets = secretRefs.stream()
+                            .map(secretRef -> keyPool.generate(secretRef.getId(), secretRef.getType()))
+                            .toArray(Secret[]::new);
+                    return repository.rotateSecrets(beforeVersion, secrets)
+                            .thenCompose(rotatedIds -> {
+                                long rotatedSoFar = rotated + rotatedIds.size();
+                                if (!cancelled.get()) {
+                                    responseObserver.onNext(Struct.newBuilder()
+                                            .putFields("batch", Value.newBuilder().setNumberValue(batch + 1).build())
+                                            .putFields("size", Value.newBuilder().setNumberValue(rotatedIds.size()).build())
+                                            .putFields("rotated", Value.newBuilder().setNumberValue(rotatedSoFar).build())
+                                            .build());
+                                }
+                                return rotateBatches(idPrefix, beforeVersion, responseObserver, cancelled, batch + 1, rotatedSoFar);
+                            });
+                });
+    }
+}
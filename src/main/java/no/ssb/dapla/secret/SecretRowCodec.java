@@ -0,0 +1,41 @@
+package no.ssb.dapla.secret;
+
+import com.google.protobuf.UnsafeByteOperations;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.sqlclient.Tuple;
+import no.ssb.dapla.secret.service.protobuf.Secret;
+
+/**
+ * Maps between {@link Secret} and the typed columns of the secret table, i.e. (id, type, content, key_id). Content
+ * is encrypted with the current data key on the way in, and decrypted with the data key it names on the way out. A
+ * null key_id means that the content is stored in plaintext.
+ */
+class SecretRowCodec {
+
+    static Secret decode(Tuple row, SecretEncryption encryption) {
+        String id = row.getString(0);
+        String type = row.getString(1);
+        // getBytes() already returns a copy, so no need for protobuf to copy it again
+        byte[] content = row.getBuffer(2).getBytes();
+        Integer keyId = row.getInteger(3);
+        return Secret.newBuilder()
+                .setId(id)
+                .setType(type)
+                .setContent(UnsafeByteOperations.unsafeWrap(keyId == null ? content : encryption.decrypt(id, type, keyId, content)))
+                .build();
+    }
+
+    static Tuple encode(Secret secret, SecretEncryption encryption) {
+        Integer keyId = encryption.currentKeyId();
+        return Tuple.tuple()
+                .addString(secret.getId())
+                .addString(secret.getType())
+                .addBuffer(Buffer.buffer(encryptContent(secret, encryption, keyId)))
+                .addInteger(keyId);
+    }
+
+    static byte[] encryptContent(Secret secret, SecretEncryption encryption, Integer keyId) {
+        byte[] content = secret.getContent().toByteArray();
+        return keyId == null ? content : encryption.encrypt(secret.getId(), secret.getType(), content);
+    }
+}
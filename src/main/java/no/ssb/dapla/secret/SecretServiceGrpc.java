@@ -2,7 +2,10 @@ package no.ssb.dapla.secret;
 
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.Deadline;
+import io.grpc.Metadata;
 import io.grpc.Status;
 import io.grpc.StatusException;
 import io.grpc.stub.StreamObserver;
@@ -31,12 +34,20 @@ import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -47,46 +58,149 @@ public class SecretServiceGrpc extends SecretServiceImplBase {
     final SecretRepository repository;
     final AuthServiceFutureStub authService;
     final CatalogServiceFutureStub catalogService;
+    final AccessDecisionCache accessDecisionCache;
+    final CatalogLookupCache<Dataset> datasetCache;
+    final CatalogLookupCache<String> datasetIdCache;
+    final SecretKeyPool keyPool;
+    final StageMetrics metrics;
+    final HedgedCalls hedgedCalls;
+    final Map<String, CompletableFuture<Secret>> pendingCreations = new ConcurrentHashMap<>();
 
-    public SecretServiceGrpc(SecretRepository repository, AuthServiceFutureStub authService, CatalogServiceFutureStub catalogService) {
+    public SecretServiceGrpc(SecretRepository repository, AuthServiceFutureStub authService, CatalogServiceFutureStub catalogService,
+                             AccessDecisionCache accessDecisionCache, CatalogLookupCache<Dataset> datasetCache, CatalogLookupCache<String> datasetIdCache,
+                             SecretKeyPool keyPool, StageMetrics metrics, HedgedCalls hedgedCalls) {
         this.repository = repository;
         this.authService = authService;
         this.catalogService = catalogService;
+        this.accessDecisionCache = accessDecisionCache;
+        this.datasetCache = datasetCache;
+        this.datasetIdCache = datasetIdCache;
+        this.keyPool = keyPool;
+        this.metrics = metrics;
+        this.hedgedCalls = hedgedCalls;
+    }
+
+    static Status statusOf(Throwable throwable) {
+        Throwable cause = throwable;
+        while (cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        if (cause instanceof TimeoutException) {
+            return Status.DEADLINE_EXCEEDED;
+        }
+        if (cause instanceof CancellationException) {
+            return Status.CANCELLED;
+        }
+        return Status.fromThrowable(cause);
     }
 
     @Override
     public void getSecrets(GetSecretsRequest request, StreamObserver<GetSecretsResponse> responseObserver) {
+        long start = System.nanoTime();
         String userId = "userId"; //TODO: Extract from request
         String datasetPath = request.getDatasetPath();
-        getDatasetMetaByPath(datasetPath)
-                .orTimeout(10, TimeUnit.SECONDS)
-                .thenAccept(dataset -> {
-                    hasAccess(userId, datasetPath, dataset.getState().name(), dataset.getValuation().name())
-                            .thenAccept(hasAccess -> {
-                                if (!hasAccess) {
-                                    responseObserver.onError(new StatusException(Status.PERMISSION_DENIED));
-                                    return;
-                                }
-                                getSecrets(dataset.getPseudoConfig().getSecretsList())
-                                        .thenAccept(secrets -> {
-                                            responseObserver.onNext(GetSecretsResponse.newBuilder().addAllSecrets(secrets).build());
-                                            responseObserver.onCompleted();
-                                        });
-                            });
+        Map<String, Long> knownVersions = SecretVersionsInterceptor.KNOWN_VERSIONS.get();
+        Map<String, Long> pinnedVersions = SecretVersionsInterceptor.PINNED_VERSIONS.get();
+        Metadata responseHeaders = SecretVersionsInterceptor.RESPONSE_HEADERS.get();
+        CallScope scope = CallScope.current();
+        CompletableFuture<Set<Secret>> response = scope.bind(getDatasetMetaByPath(datasetPath))
+                .thenCompose(dataset -> {
+                    scope.throwIfCancelled();
+                    // Read the secrets while access is checked, they are only released if access is granted
+                    CompletableFuture<Set<Secret>> secrets = knownVersions == null
+                            ? getSecrets(dataset.getPseudoConfig().getSecretsList())
+                            : getModifiedSecrets(dataset.getPseudoConfig().getSecretsList(), knownVersions, responseHeaders);
+                    if (pinnedVersions != null) {
+                        secrets = withPinnedVersions(dataset.getPseudoConfig().getSecretsList(), pinnedVersions, secrets);
+                    }
+                    return hasAccess(userId, datasetPath, dataset.getState().name(), dataset.getValuation().name(), scope)
+                            .thenCombine(scope.bind(secrets), (hasAccess, readSecrets) -> readSecrets);
+                });
+        metrics.time("rpc.getSecrets", start, response)
+                .thenAccept(secrets -> {
+                    if (scope.isCancelled()) {
+                        return;
+                    }
+                    metrics.secretCount("getSecrets", secrets.size());
+                    responseObserver.onNext(GetSecretsResponse.newBuilder().addAllSecrets(secrets).build());
+                    responseObserver.onCompleted();
                 })
                 .exceptionally(throwable -> {
+                    if (scope.isCancelled()) {
+                        LOG.debug("getSecrets was cancelled by the client");
+                        return null;
+                    }
                     LOG.error("Failed during getSecrets", throwable);
-                    responseObserver.onError(new StatusException(Status.fromThrowable(throwable)));
+                    responseObserver.onError(new StatusException(statusOf(throwable)));
                     return null;
                 });
     }
 
+    /**
+     * Resolves the catalog metadata and access of all the datasets concurrently, and reads the secrets of the
+     * datasets that may be accessed with one query for the union of their secret ids. Datasets that could not be
+     * resolved or may not be accessed are left out of the result, and their status is put in the errors map.
+     */
+    CompletableFuture<Map<String, Set<Secret>>> getSecretsBatch(List<String> datasetPaths, Map<String, Status> errors, CallScope scope) {
+        String userId = "userId"; //TODO: Extract from request
+        Map<String, CompletableFuture<Dataset>> authorizedDatasets = new LinkedHashMap<>();
+        for (String datasetPath : datasetPaths) {
+            authorizedDatasets.computeIfAbsent(datasetPath, path -> scope.bind(getDatasetMetaByPath(path))
+                    .thenCompose(dataset -> hasAccess(userId, path, dataset.getState().name(), dataset.getValuation().name(), scope)
+                            .thenApply(hasAccess -> dataset)));
+        }
+        return CompletableFuture.allOf(authorizedDatasets.values().stream()
+                .map(future -> future.handle((dataset, throwable) -> null))
+                .toArray(CompletableFuture[]::new))
+                .thenCompose(aVoid -> {
+                    scope.throwIfCancelled();
+                    Map<String, List<String>> secretIdsByDataset = new LinkedHashMap<>();
+                    authorizedDatasets.forEach((datasetPath, future) -> {
+                        if (future.isCompletedExceptionally()) {
+                            errors.put(datasetPath, statusOf(future.handle((dataset, throwable) -> throwable).join()));
+                            return;
+                        }
+                        secretIdsByDataset.put(datasetPath, future.join().getPseudoConfig().getSecretsList().stream()
+                                .map(SecretPseudoConfigItem::getId)
+                                .collect(Collectors.toList()));
+                    });
+                    String[] secretIds = secretIdsByDataset.values().stream()
+                            .flatMap(List::stream)
+                            .distinct()
+                            .toArray(String[]::new);
+                    CompletableFuture<Set<Secret>> secrets = secretIds.length == 0
+                            ? CompletableFuture.completedFuture(Set.of())
+                            : scope.bind(repository.getSecrets(secretIds));
+                    return secrets.thenApply(readSecrets -> {
+                        Map<String, Secret> secretsById = readSecrets.stream()
+                                .collect(Collectors.toMap(Secret::getId, Function.identity()));
+                        Map<String, Set<Secret>> result = new LinkedHashMap<>();
+                        secretIdsByDataset.forEach((datasetPath, ids) -> result.put(datasetPath, ids.stream()
+                                .map(secretsById::get)
+                                .filter(Objects::nonNull)
+                                .collect(Collectors.toSet())));
+                        return result;
+                    });
+                });
+    }
+
+    /**
+     * The lookup is shared by concurrent callers through the cache, so it runs under a deadline of its own.
+     */
     private CompletableFuture<Dataset> getDatasetMetaByPath(String datasetPath) {
+        return datasetCache.get(datasetPath, path -> hedgedCalls.call("catalog.getByName",
+                () -> fetchDatasetMetaByPath(path, CallScope.sharedDeadline())));
+    }
+
+    private CompletableFuture<Dataset> fetchDatasetMetaByPath(String datasetPath, Deadline deadline) {
+        long start = System.nanoTime();
 
         GetByNameDatasetRequest request = GetByNameDatasetRequest.newBuilder().addAllName(List.of(datasetPath.split("/"))).build();
         CompletableFuture<Dataset> future = new CompletableFuture<>();
 
-        Futures.addCallback(catalogService.getByName(request), new FutureCallback<>() {
+        ListenableFuture<GetByNameDatasetResponse> call = catalogService.withDeadline(deadline).getByName(request);
+        cancelOnCancellation(future, call);
+        Futures.addCallback(call, new FutureCallback<>() {
             @Override
             public void onSuccess(@Nullable GetByNameDatasetResponse result) {
                 if (result == null || !result.hasDataset()) {
@@ -102,7 +216,7 @@ public class SecretServiceGrpc extends SecretServiceImplBase {
             }
         }, MoreExecutors.directExecutor());
 
-        return future;
+        return metrics.time("catalog.getByName", start, future);
     }
 
     private CompletableFuture<Set<Secret>> getSecrets(List<SecretPseudoConfigItem> pseudoConfigItems) {
@@ -116,42 +230,118 @@ public class SecretServiceGrpc extends SecretServiceImplBase {
         return future;
     }
 
+    /**
+     * Returns only the secrets whose current version differs from the version known by the client, and adds the
+     * current versions of all the secrets to the response headers.
+     */
+    private CompletableFuture<Set<Secret>> getModifiedSecrets(List<SecretPseudoConfigItem> pseudoConfigItems, Map<String, Long> knownVersions, Metadata responseHeaders) {
+        String[] secretIds = pseudoConfigItems.stream().map(SecretPseudoConfigItem::getId).toArray(String[]::new);
+        // versions of secrets that are not in the dataset say nothing about whether the dataset's secrets changed
+        Set<String> datasetSecretIds = new HashSet<>(Arrays.asList(secretIds));
+        Map<String, Long> knownDatasetVersions = knownVersions.entrySet().stream()
+                .filter(entry -> datasetSecretIds.contains(entry.getKey()))
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+        return repository.getSecretVersions(secretIds)
+                .thenCompose(currentVersions -> {
+                    Map<String, Long> modifiedVersions = currentVersions.entrySet().stream()
+                            .filter(entry -> !entry.getValue().equals(knownDatasetVersions.get(entry.getKey())))
+                            .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+                    responseHeaders.put(SecretVersionsInterceptor.SECRET_VERSIONS_HEADER, SecretVersionsInterceptor.encode(currentVersions));
+                    if (modifiedVersions.isEmpty()) {
+                        // a known secret that is no longer current was deleted, which is a change with nothing to send
+                        responseHeaders.put(SecretVersionsInterceptor.NOT_MODIFIED_HEADER, String.valueOf(currentVersions.equals(knownDatasetVersions)));
+                        return CompletableFuture.completedFuture(Set.of());
+                    }
+                    responseHeaders.put(SecretVersionsInterceptor.NOT_MODIFIED_HEADER, "false");
+                    // read the versions named in the header, the cache may hold an older copy of the latest ones
+                    return repository.getSecretsAtVersions(modifiedVersions);
+                });
+    }
+
+    /**
+     * Replaces the secrets that the client has pinned to a version with that version, which is returned whether or not
+     * it is still the current one. Pins of secrets that are not used by the dataset are ignored.
+     */
+    private CompletableFuture<Set<Secret>> withPinnedVersions(List<SecretPseudoConfigItem> pseudoConfigItems, Map<String, Long> pinnedVersions,
+                                                              CompletableFuture<Set<Secret>> secrets) {
+        Map<String, Long> datasetPins = pseudoConfigItems.stream()
+                .map(SecretPseudoConfigItem::getId)
+                .filter(pinnedVersions::containsKey)
+                .distinct()
+                .collect(Collectors.toMap(Function.identity(), pinnedVersions::get));
+        if (datasetPins.isEmpty()) {
+            return secrets;
+        }
+        return secrets.thenCombine(repository.getSecretsAtVersions(datasetPins), (currentSecrets, pinnedSecrets) -> {
+            Set<Secret> result = currentSecrets.stream()
+                    .filter(secret -> !datasetPins.containsKey(secret.getId()))
+                    .collect(Collectors.toCollection(HashSet::new));
+            result.addAll(pinnedSecrets);
+            return result;
+        });
+    }
+
     @Override
     public void createOrGetSecrets(CreateOrGetSecretsRequest request, StreamObserver<CreateOrGetSecretsResponse> responseObserver) {
+        long start = System.nanoTime();
         String userId = "userId"; //TODO: Extract from request
         String datasetPath = request.getDatasetPath();
         String datasetState = request.getDatasetState();
         String datasetValuation = request.getDatasetValuation();
-        mapDatasetPathToId(datasetPath)
-                .orTimeout(10, TimeUnit.SECONDS)
-                .thenRun(() -> {
-                    hasAccess(userId, datasetPath, datasetState, datasetValuation)
-                            .thenAccept(hasAccess -> {
-                                if (!hasAccess) {
-                                    responseObserver.onError(new StatusException(Status.PERMISSION_DENIED));
-                                    return;
-                                }
-                                createOrGetSecrets(request.getSecretRefsList())
-                                        .thenAccept(secrets -> {
-                                            responseObserver.onNext(CreateOrGetSecretsResponse.newBuilder().addAllSecrets(secrets).build());
-                                            responseObserver.onCompleted();
-                                        });
-                            });
+        List<SecretRef> secretRefs = request.getSecretRefsList();
+
+        // The catalog lookup and the access check are independent of each other, but nothing is created or returned
+        // until both the dataset and access have been confirmed
+        CallScope scope = CallScope.current();
+        CompletableFuture<String> datasetId = scope.bind(mapDatasetPathToId(datasetPath));
+        CompletableFuture<Boolean> access = hasAccess(userId, datasetPath, datasetState, datasetValuation, scope);
+
+        CompletableFuture<Set<Secret>> response = datasetId.thenCombine(access, (id, hasAccess) -> hasAccess)
+                .thenCompose(hasAccess -> {
+                    // No keys are generated or inserted for a client that has gone away
+                    scope.throwIfCancelled();
+                    // Secrets that are not cached are read and, if missing, inserted by one statement
+                    Set<Secret> cachedSecrets = repository.getCachedSecrets(secretRefs.stream().map(SecretRef::getId).toArray(String[]::new));
+                    return scope.bind(createOrGetSecrets(secretRefs, cachedSecrets));
+                });
+        metrics.time("rpc.createOrGetSecrets", start, response)
+                .thenAccept(secrets -> {
+                    if (scope.isCancelled()) {
+                        return;
+                    }
+                    metrics.secretCount("createOrGetSecrets", secrets.size());
+                    responseObserver.onNext(CreateOrGetSecretsResponse.newBuilder().addAllSecrets(secrets).build());
+                    responseObserver.onCompleted();
                 })
                 .exceptionally(throwable -> {
+                    if (scope.isCancelled()) {
+                        LOG.debug("createOrGetSecrets was cancelled by the client");
+                        return null;
+                    }
                     LOG.error("Failed during createOrGetSecrets", throwable);
-                    responseObserver.onError(new StatusException(Status.fromThrowable(throwable)));
+                    responseObserver.onError(new StatusException(statusOf(throwable)));
                     return null;
                 });
     }
 
+    /**
+     * The lookup is shared by concurrent callers through the cache, so it runs under a deadline of its own.
+     */
     private CompletableFuture<String> mapDatasetPathToId(String datasetPath) {
+        return datasetIdCache.get(datasetPath, path -> hedgedCalls.call("catalog.mapNameToId",
+                () -> fetchDatasetIdByPath(path, CallScope.sharedDeadline())));
+    }
+
+    private CompletableFuture<String> fetchDatasetIdByPath(String datasetPath, Deadline deadline) {
+        long start = System.nanoTime();
 
         MapNameToIdRequest request = MapNameToIdRequest.newBuilder().addAllName(Arrays.asList(datasetPath.split("/"))).build();
         CompletableFuture<String> future = new CompletableFuture<>();
 
+        ListenableFuture<MapNameToIdResponse> call = catalogService.withDeadline(deadline).mapNameToId(request);
+        cancelOnCancellation(future, call);
         Futures.addCallback(
-                catalogService.mapNameToId(request),
+                call,
                 new FutureCallback<>() {
                     @Override
                     public void onSuccess(@Nullable MapNameToIdResponse result) {
@@ -169,10 +359,10 @@ public class SecretServiceGrpc extends SecretServiceImplBase {
                 },
                 MoreExecutors.directExecutor()
         );
-        return future;
+        return metrics.time("catalog.mapNameToId", start, future);
     }
 
-    private CompletableFuture<Boolean> hasAccess(String userId, String datasetPath, String datasetState, String datasetValuation) {
+    private CompletableFuture<Boolean> hasAccess(String userId, String datasetPath, String datasetState, String datasetValuation, CallScope scope) {
 
         AccessCheckRequest request = AccessCheckRequest.newBuilder()
                 .setUserId(userId)
@@ -181,20 +371,35 @@ public class SecretServiceGrpc extends SecretServiceImplBase {
                 .setValuation(datasetValuation)
                 .setPrivilege("PSEUDONYMIZE")
                 .build();
+
+        // the check is shared by concurrent callers through the cache, so it runs under a deadline of its own
+        return scope.bind(accessDecisionCache.get(request, accessCheckRequest ->
+                hedgedCalls.call("auth.hasAccess", () -> checkAccess(accessCheckRequest, CallScope.sharedDeadline()))))
+                .thenApply(allowed -> {
+                    if (!allowed) {
+                        throw new CompletionException(new StatusException(Status.PERMISSION_DENIED));
+                    }
+                    return true;
+                });
+    }
+
+    private CompletableFuture<Boolean> checkAccess(AccessCheckRequest request, Deadline deadline) {
+        long start = System.nanoTime();
         CompletableFuture<Boolean> future = new CompletableFuture<>();
 
-        Futures.addCallback(authService.hasAccess(request), new FutureCallback<>() {
+        ListenableFuture<AccessCheckResponse> call = authService.withDeadline(deadline).hasAccess(request);
+        cancelOnCancellation(future, call);
+        Futures.addCallback(call, new FutureCallback<>() {
             @Override
             public void onSuccess(@Nullable AccessCheckResponse result) {
-                if (result == null || !result.getAllowed()) {
-                    future.completeExceptionally(new StatusException(Status.PERMISSION_DENIED));
-                    return;
-                }
-                future.complete(true);
+                boolean allowed = result != null && result.getAllowed();
+                metrics.record("auth.hasAccess", allowed ? StageMetrics.OK : StageMetrics.DENIED, start);
+                future.complete(allowed);
             }
 
             @Override
             public void onFailure(Throwable t) {
+                metrics.record("auth.hasAccess", StageMetrics.outcome(t), start);
                 future.completeExceptionally(new StatusException(Status.fromThrowable(t)));
             }
         }, MoreExecutors.directExecutor());
@@ -202,43 +407,85 @@ public class SecretServiceGrpc extends SecretServiceImplBase {
         return future;
     }
 
-    private CompletableFuture<Set<Secret>> createOrGetSecrets(List<SecretRef> secretRefs) {
-        CompletableFuture<Set<Secret>> future = new CompletableFuture<>();
-        repository.getSecrets(secretRefs.stream().map(SecretRef::getId).toArray(String[]::new))
-                .thenAccept(existingSecrets -> {
+    private static void cancelOnCancellation(CompletableFuture<?> future, ListenableFuture<?> call) {
+        future.whenComplete((result, throwable) -> {
+            if (future.isCancelled()) {
+                call.cancel(true);
+            }
+        });
+    }
 
-                    HashSet<SecretRef> existingSecretRefs = existingSecrets
-                            .stream()
-                            .map(secret -> SecretRef.newBuilder().setId(secret.getId()).setType(secret.getType()).build())
-                            .collect(Collectors.toCollection(HashSet::new));
+    private CompletableFuture<Set<Secret>> createOrGetSecrets(List<SecretRef> secretRefs, Set<Secret> existingSecrets) {
+        // Only one request at a time generates and inserts a given secret id, the others wait for it
+        Map<String, SecretRef> secretRefsToCreate = new LinkedHashMap<>();
+        List<CompletableFuture<Secret>> pendingSecrets = new ArrayList<>();
+        for (SecretRef secretRef : missingSecretRefs(secretRefs, existingSecrets)) {
+            CompletableFuture<Secret> creation = new CompletableFuture<>();
+            CompletableFuture<Secret> pendingCreation = pendingCreations.putIfAbsent(secretRef.getId(), creation);
+            if (pendingCreation == null) {
+                secretRefsToCreate.put(secretRef.getId(), secretRef);
+                pendingSecrets.add(creation);
+            } else {
+                pendingSecrets.add(pendingCreation);
+            }
+        }
+
+        createSecrets(secretRefsToCreate);
+
+        return CompletableFuture.allOf(pendingSecrets.toArray(CompletableFuture[]::new))
+                .thenApply(aVoid -> Stream.concat(existingSecrets.stream(), pendingSecrets.stream().map(CompletableFuture::join))
+                        .collect(Collectors.toSet()));
+    }
+
+    static List<SecretRef> missingSecretRefs(List<SecretRef> secretRefs, Set<Secret> existingSecrets) {
+        Set<String> existingSecretIds = existingSecrets
+                .stream()
+                .map(Secret::getId)
+                .collect(Collectors.toSet());
+        return secretRefs
+                .stream()
+                .filter(secretRef -> !existingSecretIds.contains(secretRef.getId()))
+                .collect(Collectors.toList());
+    }
 
-                    List<Secret> secretsToCreate = secretRefs
+    /**
+     * Generates and inserts the given secrets, and completes their pending creations with the secrets that are
+     * actually stored, which are not the generated ones if the id already existed or another instance inserted it
+     * first.
+     */
+    private void createSecrets(Map<String, SecretRef> secretRefsToCreate) {
+        if (secretRefsToCreate.isEmpty()) {
+            return;
+        }
+        String[] secretIds = secretRefsToCreate.keySet().toArray(String[]::new);
+        CompletableFuture.completedFuture(secretRefsToCreate.values())
+                .thenApply(refs -> refs.stream()
+                        .map(secretRef -> keyPool.generate(secretRef.getId(), secretRef.getType()))
+                        .toArray(Secret[]::new))
+                .thenCompose(repository::createOrGetSecrets)
+                .whenComplete((storedSecrets, throwable) -> {
+                    Map<String, Secret> storedSecretsById = throwable != null ? Map.of() : storedSecrets
                             .stream()
-                            .filter(secretRef -> !existingSecretRefs.contains(secretRef))
-                            .map(secretRef -> SecretGenerator.generate(secretRef.getId(), secretRef.getType()))
-                            .collect(Collectors.toList());
-
-                    repository.createSecrets(secretsToCreate.toArray(Secret[]::new))
-                            .thenRun(() -> {
-                                future.complete(Stream.concat(existingSecrets.stream(), secretsToCreate.stream()).collect(Collectors.toSet()));
-                            })
-                            .exceptionally(throwable -> {
-                                future.completeExceptionally(throwable);
-                                return null;
-                            });
-                })
-                .exceptionally(throwable -> {
-                    future.completeExceptionally(throwable);
-                    return null;
+                            .collect(Collectors.toMap(Secret::getId, Function.identity()));
+                    for (String secretId : secretIds) {
+                        CompletableFuture<Secret> creation = pendingCreations.remove(secretId);
+                        if (throwable != null) {
+                            creation.completeExceptionally(throwable);
+                        } else if (!storedSecretsById.containsKey(secretId)) {
+                            creation.completeExceptionally(new StatusException(Status.INTERNAL.withDescription(
+                                    String.format("Secret with id %s was not found after it was created", secretId))));
+                        } else {
+                            creation.complete(storedSecretsById.get(secretId));
+                        }
+                    }
                 });
-        return future;
     }
 
     @Override
     public void createSecret(CreateSecretRequest request, StreamObserver<CreateSecretResponse> responseObserver) {
+        long start = System.nanoTime();
         String secretId = request.getSecret().getId();
-        repository.createSecret(request.getSecret())
-                .orTimeout(10, TimeUnit.SECONDS)
+        metrics.time("rpc.createSecret", start, CallScope.current().bind(repository.createSecret(request.getSecret())))
                 .thenRun(() -> {
                     responseObserver.onNext(CreateSecretResponse.newBuilder().setSecretId(secretId).build());
                     responseObserver.onCompleted();
@@ -252,8 +499,8 @@ public class SecretServiceGrpc extends SecretServiceImplBase {
 
     @Override
     public void deleteSecret(DeleteSecretRequest request, StreamObserver<DeleteSecretResponse> responseObserver) {
-        repository.deleteSecret(request.getSecretId())
-                .orTimeout(10, TimeUnit.SECONDS)
+        long start = System.nanoTime();
+        metrics.time("rpc.deleteSecret", start, CallScope.current().bind(repository.deleteSecret(request.getSecretId())))
                 .thenAccept(rowsAffected -> {
                     responseObserver.onNext(DeleteSecretResponse.newBuilder().setRowsAffected(rowsAffected).build());
                     responseObserver.onCompleted();
@@ -0,0 +1,260 @@
+package no.ssb.dapla.secret;
+
+import com.google.protobuf.StringValue;
+import com.google.protobuf.Struct;
+import com.google.protobuf.Value;
+import io.grpc.BindableService;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerInterceptors;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.Status;
+import io.grpc.protobuf.ProtoUtils;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.ServerCalls;
+import io.grpc.stub.StreamObserver;
+import io.helidon.config.Config;
+import io.vertx.pgclient.PgPool;
+import no.ssb.dapla.secret.service.protobuf.Secret;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Bulk transfer of secrets for backup and migration, to callers that pass the {@link AdminAuthorization} check. The
+ * secret-service protobuf contract is versioned in a separate module, so the methods are described here using the
+ * existing Secret message and the protobuf wrapper types.
+ */
+public class SecretTransferGrpc implements BindableService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SecretTransferGrpc.class);
+
+    public static final String SERVICE_NAME = "dapla.secret.SecretTransferService";
+
+    /**
+     * Streams every secret whose id starts with the requested prefix, an empty prefix exports all secrets. The Secret
+     * message carries no version, so only the latest version of each secret can be exported, and a prefix that
+     * matches rotated secrets, which keep their retired versions, fails with FAILED_PRECONDITION.
+     */
+    public static final MethodDescriptor<StringValue, Secret> EXPORT_SECRETS_METHOD = MethodDescriptor.<StringValue, Secret>newBuilder()
+            .setType(MethodDescriptor.MethodType.SERVER_STREAMING)
+            .setFullMethodName(MethodDescriptor.generateFullMethodName(SERVICE_NAME, "ExportSecrets"))
+            .setRequestMarshaller(ProtoUtils.marshaller(StringValue.getDefaultInstance()))
+            .setResponseMarshaller(ProtoUtils.marshaller(Secret.getDefaultInstance()))
+            .build();
+
+    /**
+     * Imports a stream of secrets, existing ids are left untouched. Progress is streamed back as one Struct per
+     * written chunk with the fields chunk, size, skipped, i.e. the secrets of the chunk whose id already existed, and
+     * imported, i.e. the secrets inserted so far, and an error field when the chunk failed.
+     */
+    public static final MethodDescriptor<Secret, Struct> IMPORT_SECRETS_METHOD = MethodDescriptor.<Secret, Struct>newBuilder()
+            .setType(MethodDescriptor.MethodType.BIDI_STREAMING)
+            .setFullMethodName(MethodDescriptor.generateFullMethodName(SERVICE_NAME, "ImportSecrets"))
+            .setRequestMarshaller(ProtoUtils.marshaller(Secret.getDefaultInstance()))
+            .setResponseMarshaller(ProtoUtils.marshaller(Struct.getDefaultInstance()))
+            .build();
+
+    final SecretRepository repository;
+    final PgPool cursorClient;
+    final StageMetrics metrics;
+    final AdminAuthorization adminAuthorization;
+    final int fetchSize;
+    final int importChunkSize;
+    final int importMaxInFlight;
+
+    public SecretTransferGrpc(SecretRepository repository, PgPool cursorClient, StageMetrics metrics, AdminAuthorization adminAuthorization,
+                              Config config) {
+        this.repository = repository;
+        this.cursorClient = cursorClient;
+        this.metrics = metrics;
+        this.adminAuthorization = adminAuthorization;
+        this.fetchSize = config.get("fetch-size").asInt().orElse(100);
+        this.importChunkSize = config.get("import-chunk-size").asInt().orElse(1000);
+        this.importMaxInFlight = config.get("import-max-in-flight").asInt().orElse(4);
+    }
+
+    @Override
+    public ServerServiceDefinition bindService() {
+        return ServerInterceptors.intercept(ServerServiceDefinition.builder(SERVICE_NAME)
+                .addMethod(EXPORT_SECRETS_METHOD, ServerCalls.asyncServerStreamingCall(this::exportSecrets))
+                .addMethod(IMPORT_SECRETS_METHOD, ServerCalls.asyncBidiStreamingCall(this::importSecrets))
+                .build(), adminAuthorization);
+    }
+
+    void exportSecrets(StringValue request, StreamObserver<Secret> responseObserver) {
+        long start = System.nanoTime();
+        ServerCallStreamObserver<Secret> serverObserver = (ServerCallStreamObserver<Secret>) responseObserver;
+        AtomicReference<SecretCursor> cursorRef = new AtomicReference<>();
+        AtomicBoolean cancelled = new AtomicBoolean();
+
+        // the handlers must be installed before this method returns, the cursor is opened asynchronously
+        serverObserver.setOnCancelHandler(() -> {
+            cancelled.set(true);
+            SecretCursor cursor = cursorRef.get();
+            if (cursor != null) {
+                cursor.close();
+            }
+            metrics.record("rpc.exportSecrets", StageMetrics.CANCELLED, start);
+        });
+        serverObserver.setOnReadyHandler(() -> {
+            SecretCursor cursor = cursorRef.get();
+            if (cursor != null) {
+                cursor.resume();
+            }
+        });
+
+        repository.openSecretCursor(cursorClient, request.getValue(), fetchSize).whenComplete((cursor, throwable) -> {
+            if (throwable != null) {
+                LOG.error("while opening secret cursor", throwable);
+                metrics.record("rpc.exportSecrets", StageMetrics.outcome(throwable), start);
+                if (!cancelled.get()) {
+                    responseObserver.onError(Status.fromThrowable(throwable).asRuntimeException());
+                }
+                return;
+            }
+            cursorRef.set(cursor);
+            if (cancelled.get()) {
+                cursor.close();
+                return;
+            }
+            cursor.start(secret -> {
+                if (cancelled.get()) {
+                    return;
+                }
+                serverObserver.onNext(secret);
+                if (!serverObserver.isReady()) {
+                    cursor.pause();
+                    // the client may have become ready again before the cursor was paused
+                    if (serverObserver.isReady()) {
+                        cursor.resume();
+                    }
+                }
+            }, () -> {
+                metrics.record("rpc.exportSecrets", StageMetrics.OK, start);
+                responseObserver.onCompleted();
+            }, error -> {
+                LOG.error("while exporting secrets", error);
+                metrics.record("rpc.exportSecrets", StageMetrics.outcome(error), start);
+                if (!cancelled.get()) {
+                    responseObserver.onError(Status.fromThrowable(error).asRuntimeException());
+                }
+            });
+            if (serverObserver.isReady()) {
+                cursor.resume();
+            }
+        });
+    }
+
+    StreamObserver<Secret> importSecrets(StreamObserver<Struct> responseObserver) {
+        ServerCallStreamObserver<Struct> serverObserver = (ServerCallStreamObserver<Struct>) responseObserver;
+        serverObserver.disableAutoInboundFlowControl();
+        ImportCall importCall = new ImportCall(serverObserver);
+        serverObserver.setOnCancelHandler(importCall::cancel);
+        serverObserver.request(importChunkSize);
+        return importCall;
+    }
+
+    /**
+     * Buffers incoming secrets into chunks and writes each chunk with one batch insert. Inbound messages are only
+     * requested while fewer than the maximum number of chunks are being written, so a fast client cannot make the
+     * server buffer more than a bounded number of secrets.
+     */
+    class ImportCall implements StreamObserver<Secret> {
+
+        final ServerCallStreamObserver<Struct> responseObserver;
+        final long start = System.nanoTime();
+        List<Secret> buffer = new ArrayList<>(importChunkSize);
+        int chunks;
+        int inFlight;
+        long imported;
+        boolean failed;
+        boolean halfClosed;
+        boolean done;
+
+        ImportCall(ServerCallStreamObserver<Struct> responseObserver) {
+            this.responseObserver = responseObserver;
+        }
+
+        @Override
+        public synchronized void onNext(Secret secret) {
+            if (done) {
+                return;
+            }
+            buffer.add(secret);
+            if (buffer.size() >= importChunkSize) {
+                flush();
+                if (inFlight < importMaxInFlight) {
+                    responseObserver.request(importChunkSize);
+                }
+            }
+        }
+
+        @Override
+        public synchronized void onError(Throwable throwable) {
+            LOG.warn("client aborted secret import after {} chunks", chunks, throwable);
+            cancel();
+        }
+
+        @Override
+        public synchronized void onCompleted() {
+            halfClosed = true;
+            if (!buffer.isEmpty()) {
+                flush();
+            }
+            completeIfDone();
+        }
+
+        synchronized void cancel() {
+            if (!done) {
+                done = true;
+                metrics.record("rpc.importSecrets", StageMetrics.CANCELLED, start);
+            }
+        }
+
+        private void flush() {
+            int chunk = ++chunks;
+            List<Secret> secrets = buffer;
+            buffer = new ArrayList<>(importChunkSize);
+            inFlight++;
+            repository.createSecrets(secrets.toArray(Secret[]::new))
+                    .whenComplete((inserted, throwable) -> chunkWritten(chunk, secrets.size(), inserted, throwable));
+        }
+
+        private synchronized void chunkWritten(int chunk, int size, Integer inserted, Throwable throwable) {
+            boolean wasThrottled = inFlight >= importMaxInFlight;
+            inFlight--;
+            if (done) {
+                return;
+            }
+            Struct.Builder progress = Struct.newBuilder()
+                    .putFields("chunk", Value.newBuilder().setNumberValue(chunk).build())
+                    .putFields("size", Value.newBuilder().setNumberValue(size).build());
+            if (throwable == null) {
+                imported += inserted;
+                progress.putFields("skipped", Value.newBuilder().setNumberValue(size - inserted).build());
+            } else {
+                LOG.error("while importing chunk {} of {} secrets", chunk, size, throwable);
+                failed = true;
+                progress.putFields("error", Value.newBuilder().setStringValue(String.valueOf(throwable.getMessage())).build());
+            }
+            progress.putFields("imported", Value.newBuilder().setNumberValue(imported).build());
+            responseObserver.onNext(progress.build());
+            if (wasThrottled && !halfClosed) {
+                responseObserver.request(importChunkSize);
+            }
+            completeIfDone();
+        }
+
+        private void completeIfDone() {
+            if (halfClosed && inFlight == 0 && !done) {
+                done = true;
+                metrics.record("rpc.importSecrets", failed ? StageMetrics.ERROR : StageMetrics.OK, start);
+                responseObserver.onCompleted();
+            }
+        }
+    }
+}
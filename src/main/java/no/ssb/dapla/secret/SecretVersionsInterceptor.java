@@ -0,0 +1,88 @@
+package no.ssb.dapla.secret;
+
+import io.grpc.Context;
+import io.grpc.Contexts;
+import io.grpc.ForwardingServerCall;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Enables conditional reads of secrets. A client that sends the versions of the secrets it already holds in the
+ * {@code secret-versions} header gets only new or changed secrets back, the current versions of all the requested
+ * secrets in the {@code secret-versions} response header, and {@code secrets-not-modified: true} if nothing changed.
+ * Versions of secrets that are not part of the requested dataset are ignored.
+ * A client that needs a version other than the current one, e.g. to read a dataset that was pseudonymized before a
+ * secret was rotated, sends it in the {@code secret-pinned-versions} header, and always gets that version back.
+ * Versions are encoded as a comma separated list of url-encoded {@code id=version} pairs.
+ */
+public class SecretVersionsInterceptor implements ServerInterceptor {
+
+    static final Metadata.Key<String> SECRET_VERSIONS_HEADER = Metadata.Key.of("secret-versions", Metadata.ASCII_STRING_MARSHALLER);
+    static final Metadata.Key<String> NOT_MODIFIED_HEADER = Metadata.Key.of("secrets-not-modified", Metadata.ASCII_STRING_MARSHALLER);
+    static final Metadata.Key<String> PINNED_VERSIONS_HEADER = Metadata.Key.of("secret-pinned-versions", Metadata.ASCII_STRING_MARSHALLER);
+
+    static final Context.Key<Map<String, Long>> KNOWN_VERSIONS = Context.key("known-secret-versions");
+    static final Context.Key<Map<String, Long>> PINNED_VERSIONS = Context.key("pinned-secret-versions");
+    static final Context.Key<Metadata> RESPONSE_HEADERS = Context.key("secret-versions-response-headers");
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+        String knownVersionsHeader = headers.get(SECRET_VERSIONS_HEADER);
+        String pinnedVersionsHeader = headers.get(PINNED_VERSIONS_HEADER);
+        if (knownVersionsHeader == null && pinnedVersionsHeader == null) {
+            return next.startCall(call, headers);
+        }
+        Map<String, Long> knownVersions;
+        Map<String, Long> pinnedVersions;
+        try {
+            knownVersions = knownVersionsHeader == null ? null : decode(knownVersionsHeader);
+            pinnedVersions = pinnedVersionsHeader == null ? null : decode(pinnedVersionsHeader);
+        } catch (RuntimeException e) {
+            call.close(Status.INVALID_ARGUMENT.withDescription("Malformed secret-versions or secret-pinned-versions header"), new Metadata());
+            return new ServerCall.Listener<>() {
+            };
+        }
+        Metadata responseHeaders = new Metadata();
+        Context context = Context.current().withValues(KNOWN_VERSIONS, knownVersions, PINNED_VERSIONS, pinnedVersions,
+                RESPONSE_HEADERS, responseHeaders);
+        ServerCall<ReqT, RespT> versionsAwareCall = new ForwardingServerCall.SimpleForwardingServerCall<>(call) {
+            @Override
+            public void sendHeaders(Metadata headers) {
+                headers.merge(responseHeaders);
+                super.sendHeaders(headers);
+            }
+        };
+        return Contexts.interceptCall(context, versionsAwareCall, headers, next);
+    }
+
+    static Map<String, Long> decode(String versions) {
+        Map<String, Long> result = new LinkedHashMap<>();
+        if (versions.isBlank()) {
+            return result;
+        }
+        for (String pair : versions.split(",")) {
+            int separator = pair.lastIndexOf('=');
+            if (separator < 0) {
+                throw new IllegalArgumentException(String.format("Missing version in '%s'", pair));
+            }
+            result.put(URLDecoder.decode(pair.substring(0, separator).trim(), StandardCharsets.UTF_8), Long.parseLong(pair.substring(separator + 1).trim()));
+        }
+        return result;
+    }
+
+    static String encode(Map<String, Long> versions) {
+        return versions.entrySet().stream()
+                .map(entry -> URLEncoder.encode(entry.getKey(), StandardCharsets.UTF_8) + "=" + entry.getValue())
+                .collect(Collectors.joining(","));
+    }
+}
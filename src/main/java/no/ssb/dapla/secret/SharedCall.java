@@ -0,0 +1,68 @@
+package no.ssb.dapla.secret;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A downstream call shared by concurrent callers, each of which waits on a view of its own. Cancelling a view only
+ * lets go of that caller; the call itself is cancelled once every caller that waited for it has let go. A call
+ * that nobody waits for any more cannot be joined, so that the next caller starts a new one.
+ */
+class SharedCall<T> {
+
+    final CompletableFuture<T> future = new CompletableFuture<>();
+    // the caller that starts the call is the first waiter
+    private final AtomicInteger waiters = new AtomicInteger(1);
+    private volatile CompletableFuture<?> call;
+
+    /**
+     * Sets the call that completes the shared future, to be cancelled when the last waiter lets go.
+     */
+    void attach(CompletableFuture<?> call) {
+        this.call = call;
+        if (waiters.get() == 0) {
+            call.cancel(true);
+        }
+    }
+
+    /**
+     * @return false if every earlier waiter has let go of a call that has not completed, which is then being
+     * cancelled
+     */
+    boolean tryJoin() {
+        while (!future.isDone()) {
+            int current = waiters.get();
+            if (current == 0) {
+                return false;
+            }
+            if (waiters.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a view of the shared future for a caller that created or joined the call.
+     */
+    CompletableFuture<T> view() {
+        CompletableFuture<T> view = future.copy();
+        if (!future.isDone()) {
+            view.whenComplete((result, throwable) -> {
+                if (view.isCancelled()) {
+                    letGo();
+                }
+            });
+        }
+        return view;
+    }
+
+    private void letGo() {
+        if (waiters.decrementAndGet() == 0 && !future.isDone()) {
+            CompletableFuture<?> current = call;
+            if (current != null) {
+                current.cancel(true);
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package no.ssb.dapla.secret;
+
+import io.grpc.Status;
+import org.eclipse.microprofile.metrics.Histogram;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.Tag;
+import org.eclipse.microprofile.metrics.Timer;
+
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Latency and count of each RPC method and of each downstream stage, i.e. catalog and auth calls and repository
+ * statements, tagged by stage and outcome. The number of secrets per request is kept as a histogram per method.
+ */
+public class StageMetrics {
+
+    static final String OK = "ok";
+    static final String DENIED = "denied";
+    static final String NOT_FOUND = "not-found";
+    static final String TIMEOUT = "timeout";
+    static final String ERROR = "error";
+    static final String CANCELLED = "cancelled";
+    static final String UNAVAILABLE = "unavailable";
+
+    private final MetricRegistry registry;
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> secretCounts = new ConcurrentHashMap<>();
+
+    public StageMetrics(MetricRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Records the latency of the given future, started at startNanos, when it completes.
+     */
+    public <T> CompletableFuture<T> time(String stage, long startNanos, CompletableFuture<T> future) {
+        future.whenComplete((result, throwable) -> record(stage, outcome(throwable), startNanos));
+        return future;
+    }
+
+    public void record(String stage, String outcome, long startNanos) {
+        timers.computeIfAbsent(stage + '|' + outcome, key -> registry.timer("secret.stage", new Tag("stage", stage), new Tag("outcome", outcome)))
+                .update(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return the latency at the given quantile of the successful calls to the stage so far, or zero if there are none
+     */
+    public long latencyNanos(String stage, double quantile) {
+        Timer timer = timers.get(stage + '|' + OK);
+        return timer == null ? 0 : (long) timer.getSnapshot().getValue(quantile);
+    }
+
+    public void secretCount(String method, int count) {
+        secretCounts.computeIfAbsent(method, key -> registry.histogram("secret.rpc.secrets", new Tag("method", method)))
+                .update(count);
+    }
+
+    static String outcome(Throwable throwable) {
+        if (throwable == null) {
+            return OK;
+        }
+        Throwable cause = throwable;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException) && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        if (cause instanceof TimeoutException) {
+            return TIMEOUT;
+        }
+        if (cause instanceof CancellationException) {
+            return CANCELLED;
+        }
+        switch (Status.fromThrowable(cause).getCode()) {
+            case PERMISSION_DENIED:
+                return DENIED;
+            case NOT_FOUND:
+                return NOT_FOUND;
+            case DEADLINE_EXCEEDED:
+                return TIMEOUT;
+            case UNAVAILABLE:
+                return UNAVAILABLE;
+            default:
+                return ERROR;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package no.ssb.dapla.secret;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Times the phases of application startup, which may run concurrently, and logs the breakdown once startup is done.
+ */
+class StartupPhases {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StartupPhases.class);
+
+    private final long start = System.nanoTime();
+    private final Map<String, long[]> phases = new ConcurrentHashMap<>();
+    private final Executor executor;
+
+    StartupPhases(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Runs a blocking phase on the startup executor.
+     */
+    CompletableFuture<Void> runAsync(String phase, Runnable runnable) {
+        return CompletableFuture.runAsync(() -> run(phase, runnable), executor);
+    }
+
+    void run(String phase, Runnable runnable) {
+        long phaseStart = System.nanoTime();
+        try {
+            runnable.run();
+        } finally {
+            record(phase, phaseStart);
+        }
+    }
+
+    /**
+     * Times a non-blocking phase from when it is started until the returned future completes.
+     */
+    <T> CompletableFuture<T> time(String phase, Supplier<CompletableFuture<T>> supplier) {
+        long phaseStart = System.nanoTime();
+        return supplier.get().whenComplete((result, throwable) -> record(phase, phaseStart));
+    }
+
+    void record(String phase, long phaseStart) {
+        phases.put(phase, new long[]{phaseStart - start, System.nanoTime() - phaseStart});
+    }
+
+    void log() {
+        LOG.info("Startup completed in {} ms: {}", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), phases.entrySet().stream()
+                .sorted(Map.Entry.comparingByValue((a, b) -> Long.compare(a[0], b[0])))
+                .map(entry -> String.format("%s started at %d ms and took %d ms", entry.getKey(),
+                        TimeUnit.NANOSECONDS.toMillis(entry.getValue()[0]), TimeUnit.NANOSECONDS.toMillis(entry.getValue()[1])))
+                .collect(Collectors.joining(", ")));
+    }
+}
@@ -0,0 +1,15 @@
+-- noinspection SqlNoDataSourceInspectionForFile
+
+ALTER TABLE secret
+    ADD COLUMN type    varchar(100),
+    ADD COLUMN content bytea;
+
+-- protobuf json omits fields with default values, and encodes bytes as base64
+UPDATE secret
+SET type    = coalesce(document ->> 'type', ''),
+    content = coalesce(decode(document ->> 'content', 'base64'), ''::bytea);
+
+ALTER TABLE secret
+    ALTER COLUMN type SET NOT NULL,
+    ALTER COLUMN content SET NOT NULL,
+    DROP COLUMN document;
@@ -0,0 +1,10 @@
+-- noinspection SqlNoDataSourceInspectionForFile
+
+-- Versions are drawn from a sequence rather than counted per id, so that a secret that is deleted and created again
+-- never gets a version a client may already have seen. Existing rows are given a version when the column is added.
+CREATE SEQUENCE secret_version_seq;
+
+ALTER TABLE secret
+    ADD COLUMN version bigint NOT NULL DEFAULT nextval('secret_version_seq');
+
+ALTER SEQUENCE secret_version_seq OWNED BY secret.version;
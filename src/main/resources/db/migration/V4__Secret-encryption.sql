@@ -0,0 +1,15 @@
+-- noinspection SqlNoDataSourceInspectionForFile
+
+-- Data keys are stored wrapped by the key-encryption key, which never leaves the service's key file or keystore.
+CREATE TABLE secret_data_key
+(
+    id          serial PRIMARY KEY,
+    wrapped_key bytea                    NOT NULL,
+    created     timestamp with time zone NOT NULL DEFAULT now()
+);
+
+-- Rows without a data key hold plaintext content, and are encrypted in batches by the service.
+ALTER TABLE secret
+    ADD COLUMN key_id integer REFERENCES secret_data_key (id);
+
+CREATE INDEX secret_plaintext_idx ON secret (id) WHERE key_id IS NULL;
@@ -0,0 +1,10 @@
+-- noinspection SqlNoDataSourceInspectionForFile
+
+-- Rotation adds a new version of a secret and keeps the earlier ones, which are still needed to read datasets that
+-- were pseudonymized with them. Exactly one version of each secret is the latest, and lookups by id use that one.
+ALTER TABLE secret
+    ADD COLUMN latest boolean NOT NULL DEFAULT true,
+    DROP CONSTRAINT secret_pkey,
+    ADD PRIMARY KEY (id, version);
+
+CREATE UNIQUE INDEX secret_latest_idx ON secret (id) WHERE latest;
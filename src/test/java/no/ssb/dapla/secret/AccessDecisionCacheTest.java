@@ -0,0 +1,89 @@
+package no.ssb.dapla.secret;
+
+import io.helidon.config.Config;
+import no.ssb.dapla.auth.dataset.protobuf.AccessCheckRequest;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AccessDecisionCacheTest {
+
+    static final AccessCheckRequest REQUEST = AccessCheckRequest.newBuilder()
+            .setUserId("userId")
+            .setNamespace("/directory/a-dataset")
+            .setState("RAW")
+            .setValuation("SENSITIVE")
+            .setPrivilege("PSEUDONYMIZE")
+            .build();
+
+    @Test
+    void thatConcurrentLookupsShareOneAccessCheck() {
+        AccessDecisionCache cache = new AccessDecisionCache(Config.empty());
+        AtomicInteger calls = new AtomicInteger();
+        CompletableFuture<Boolean> remote = new CompletableFuture<>();
+
+        CompletableFuture<Boolean> first = cache.get(REQUEST, request -> {
+            calls.incrementAndGet();
+            return remote;
+        });
+        CompletableFuture<Boolean> second = cache.get(REQUEST, request -> {
+            calls.incrementAndGet();
+            return remote;
+        });
+        remote.complete(true);
+
+        assertThat(first.join()).isTrue();
+        assertThat(second.join()).isTrue();
+        assertThat(calls).hasValue(1);
+    }
+
+    @Test
+    void thatFailedAccessChecksAreNotCached() {
+        AccessDecisionCache cache = new AccessDecisionCache(Config.empty());
+        AtomicInteger calls = new AtomicInteger();
+
+        CompletableFuture<Boolean> failed = cache.get(REQUEST, request -> {
+            calls.incrementAndGet();
+            return CompletableFuture.failedFuture(new RuntimeException("auth-service unavailable"));
+        });
+        CompletableFuture<Boolean> retried = cache.get(REQUEST, request -> {
+            calls.incrementAndGet();
+            return CompletableFuture.completedFuture(false);
+        });
+
+        assertThat(failed).isCompletedExceptionally();
+        assertThat(retried.join()).isFalse();
+        assertThat(calls).hasValue(2);
+    }
+
+    @Test
+    void thatAccessChecksThatThrowAreNotCached() {
+        AccessDecisionCache cache = new AccessDecisionCache(Config.empty());
+
+        CompletableFuture<Boolean> failed = cache.get(REQUEST, request -> {
+            throw new IllegalStateException("auth-service channel is shut down");
+        });
+        CompletableFuture<Boolean> retried = cache.get(REQUEST, request -> CompletableFuture.completedFuture(true));
+
+        assertThat(failed).isCompletedExceptionally();
+        assertThat(retried.join()).isTrue();
+    }
+
+    @Test
+    void thatSharedCheckIsCancelledOnlyWhenEveryLookupIsCancelled() {
+        AccessDecisionCache cache = new AccessDecisionCache(Config.empty());
+        CompletableFuture<Boolean> remote = new CompletableFuture<>();
+        CompletableFuture<Boolean> first = cache.get(REQUEST, request -> remote);
+        CompletableFuture<Boolean> second = cache.get(REQUEST, request -> remote);
+
+        first.cancel(true);
+        assertThat(remote).isNotCancelled();
+
+        second.cancel(true);
+        assertThat(remote).isCancelled();
+        assertThat(cache.get(REQUEST, request -> CompletableFuture.completedFuture(true)).join()).isTrue();
+    }
+}
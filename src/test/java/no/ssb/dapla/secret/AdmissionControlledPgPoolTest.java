@@ -0,0 +1,196 @@
+package no.ssb.dapla.secret;
+
+import io.helidon.metrics.RegistryFactory;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.pgclient.PgPool;
+import io.vertx.sqlclient.SqlConnection;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AdmissionControlledPgPoolTest {
+
+    final MetricRegistry metricRegistry = RegistryFactory.getInstance().getRegistry(MetricRegistry.Type.APPLICATION);
+    final Deque<Handler<AsyncResult<SqlConnection>>> connectionRequests = new ArrayDeque<>();
+    final List<AsyncResult<?>> results = new ArrayList<>();
+
+    @SuppressWarnings("unchecked")
+    final PgPool delegate = (PgPool) Proxy.newProxyInstance(PgPool.class.getClassLoader(), new Class<?>[]{PgPool.class}, (proxy, method, args) -> {
+        if (!method.getName().equals("getConnection")) {
+            throw new UnsupportedOperationException(method.getName());
+        }
+        connectionRequests.addLast((Handler<AsyncResult<SqlConnection>>) args[0]);
+        return null;
+    });
+
+    /**
+     * A connection that keeps the handlers of the statements sent on it until the test completes them.
+     */
+    static class FakeConnection {
+        final Deque<Handler<AsyncResult<?>>> statements = new ArrayDeque<>();
+        Handler<Void> closeHandler;
+        boolean released;
+
+        @SuppressWarnings("unchecked")
+        final SqlConnection connection = (SqlConnection) Proxy.newProxyInstance(SqlConnection.class.getClassLoader(), new Class<?>[]{SqlConnection.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "preparedQuery":
+                    statements.addLast((Handler<AsyncResult<?>>) args[args.length - 1]);
+                    return proxy;
+                case "closeHandler":
+                    closeHandler = (Handler<Void>) args[0];
+                    return proxy;
+                case "close":
+                    released = true;
+                    return null;
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+
+        void complete() {
+            statements.pollFirst().handle(Future.succeededFuture());
+        }
+
+        void fail(Throwable cause) {
+            statements.pollFirst().handle(Future.failedFuture(cause));
+        }
+
+        void lose() {
+            closeHandler.handle(null);
+        }
+    }
+
+    AdmissionControlledPgPool pool(int maxSize, int maxWaitQueueSize, int pipeliningLimit) {
+        return new AdmissionControlledPgPool(delegate, "test-pgpool", maxSize, maxWaitQueueSize, pipeliningLimit, metricRegistry);
+    }
+
+    void query(AdmissionControlledPgPool pool) {
+        pool.preparedQuery("SELECT 1", results::add);
+    }
+
+    FakeConnection giveConnection() {
+        FakeConnection connection = new FakeConnection();
+        connectionRequests.pollFirst().handle(Future.succeededFuture(connection.connection));
+        return connection;
+    }
+
+    @Test
+    void thatStatementsGoToTheLeastLoadedConnection() {
+        AdmissionControlledPgPool pool = pool(2, 10, 3);
+        for (int i = 0; i < 4; i++) {
+            query(pool);
+        }
+        assertThat(connectionRequests).hasSize(2);
+        FakeConnection first = giveConnection();
+        FakeConnection second = giveConnection();
+        assertThat(first.statements).hasSize(3);
+        assertThat(second.statements).hasSize(1);
+
+        first.complete();
+        query(pool);
+
+        assertThat(first.statements).hasSize(2);
+        assertThat(second.statements).hasSize(2);
+        assertThat(pool.statementsInFlight()).isEqualTo(4);
+    }
+
+    @Test
+    void thatConnectionIsGivenBackWhenNothingIsWaiting() {
+        AdmissionControlledPgPool pool = pool(1, 10, 1);
+        query(pool);
+        query(pool);
+        FakeConnection connection = giveConnection();
+        assertThat(pool.waitQueueDepth()).isEqualTo(1);
+
+        connection.complete();
+
+        assertThat(connection.released).isFalse();
+        assertThat(connection.statements).hasSize(1);
+        assertThat(pool.waitQueueDepth()).isZero();
+
+        connection.complete();
+
+        assertThat(connection.released).isTrue();
+        assertThat(pool.connectionsInUse()).isZero();
+        assertThat(results).hasSize(2).allMatch(AsyncResult::succeeded);
+    }
+
+    @Test
+    void thatFailedAcquireFailsOneWaiterAndKeepsAcquiringForTheRest() {
+        AdmissionControlledPgPool pool = pool(1, 10, 1);
+        query(pool);
+        query(pool);
+        assertThat(connectionRequests).hasSize(1);
+
+        IllegalStateException cause = new IllegalStateException("connection refused");
+        connectionRequests.pollFirst().handle(Future.failedFuture(cause));
+
+        assertThat(results).hasSize(1);
+        assertThat(results.get(0).cause()).isSameAs(cause);
+        assertThat(connectionRequests).hasSize(1);
+
+        FakeConnection connection = giveConnection();
+
+        assertThat(connection.statements).hasSize(1);
+        assertThat(pool.waitQueueDepth()).isZero();
+    }
+
+    @Test
+    void thatLostConnectionIsReplacedForWaiters() {
+        AdmissionControlledPgPool pool = pool(1, 10, 1);
+        query(pool);
+        FakeConnection lost = giveConnection();
+        query(pool);
+        assertThat(connectionRequests).isEmpty();
+
+        lost.lose();
+        assertThat(pool.connectionsInUse()).isZero();
+        lost.fail(new IllegalStateException("connection closed"));
+
+        assertThat(results).hasSize(1);
+        assertThat(results.get(0).failed()).isTrue();
+        assertThat(lost.released).isFalse();
+        assertThat(connectionRequests).hasSize(1);
+
+        FakeConnection replacement = giveConnection();
+
+        assertThat(replacement.statements).hasSize(1);
+        assertThat(pool.connectionsInUse()).isEqualTo(1);
+    }
+
+    @Test
+    void thatQueriesBeyondStatementSlotsAndWaitQueueAreRejected() {
+        AdmissionControlledPgPool pool = pool(2, 3, 2);
+        for (int i = 0; i < 7; i++) {
+            query(pool);
+        }
+        assertThat(results).isEmpty();
+
+        query(pool);
+
+        assertThat(results).hasSize(1);
+        assertThat(AdmissionControlledPgPool.isRejection(results.get(0).cause())).isTrue();
+
+        FakeConnection connection = giveConnection();
+        connection.complete();
+        results.clear();
+        query(pool);
+
+        assertThat(results).isEmpty();
+        assertThat(pool.waitQueueDepth()).isEqualTo(5);
+    }
+}
@@ -0,0 +1,184 @@
+package no.ssb.dapla.secret;
+
+import io.helidon.config.Config;
+import io.helidon.config.ConfigSources;
+import io.helidon.metrics.RegistryFactory;
+import no.ssb.dapla.secret.service.protobuf.Secret;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CachingSecretRepositoryTest {
+
+    final MetricRegistry metricRegistry = RegistryFactory.getInstance().getRegistry(MetricRegistry.Type.APPLICATION);
+    final StageMetrics metrics = new StageMetrics(metricRegistry);
+    final Map<String, Secret> storedSecrets = new ConcurrentHashMap<>();
+    final List<List<String>> repositoryQueries = new CopyOnWriteArrayList<>();
+
+    // the counters are shared by every repository in the jvm, so tests compare against their values at the start
+    final long initialHits = metricRegistry.counter("secret.cache.hits").getCount();
+    final long initialMisses = metricRegistry.counter("secret.cache.misses").getCount();
+    final long initialEvictions = metricRegistry.counter("secret.cache.evictions").getCount();
+
+    final SecretRepository delegate = new SecretRepository(null, metrics) {
+        @Override
+        public CompletableFuture<Set<Secret>> getSecrets(String... ids) {
+            repositoryQueries.add(List.of(ids));
+            return CompletableFuture.completedFuture(Arrays.stream(ids)
+                    .map(storedSecrets::get)
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toSet()));
+        }
+
+        @Override
+        public CompletableFuture<Secret> getSecret(String id) {
+            repositoryQueries.add(List.of(id));
+            return CompletableFuture.completedFuture(storedSecrets.get(id));
+        }
+
+        @Override
+        public CompletableFuture<Set<Secret>> createOrGetSecrets(Secret... secrets) {
+            for (Secret secret : secrets) {
+                storedSecrets.putIfAbsent(secret.getId(), secret);
+            }
+            return CompletableFuture.completedFuture(Arrays.stream(secrets)
+                    .map(secret -> storedSecrets.get(secret.getId()))
+                    .collect(Collectors.toSet()));
+        }
+
+        @Override
+        public CompletableFuture<List<String>> rotateSecrets(long beforeVersion, Secret... secrets) {
+            for (Secret secret : secrets) {
+                storedSecrets.put(secret.getId(), secret);
+            }
+            return CompletableFuture.completedFuture(Arrays.stream(secrets).map(Secret::getId).collect(Collectors.toList()));
+        }
+
+        @Override
+        public CompletableFuture<Integer> deleteSecret(String id) {
+            return CompletableFuture.completedFuture(storedSecrets.remove(id) == null ? 0 : 1);
+        }
+
+        @Override
+        CompletableFuture<Void> deleteAllSecrets() {
+            storedSecrets.clear();
+            return CompletableFuture.completedFuture(null);
+        }
+    };
+
+    CachingSecretRepository repository(long maxSize) {
+        return new CachingSecretRepository(delegate, Config.create(ConfigSources.create(Map.of(
+                "max-size", String.valueOf(maxSize)))), metricRegistry);
+    }
+
+    Secret store(String id) {
+        Secret secret = SecretGenerator.generate(id, "AES256");
+        storedSecrets.put(id, secret);
+        return secret;
+    }
+
+    long hits() {
+        return metricRegistry.counter("secret.cache.hits").getCount() - initialHits;
+    }
+
+    long misses() {
+        return metricRegistry.counter("secret.cache.misses").getCount() - initialMisses;
+    }
+
+    long evictions() {
+        return metricRegistry.counter("secret.cache.evictions").getCount() - initialEvictions;
+    }
+
+    @Test
+    void thatOnlyMissingIdsAreReadFromTheWrappedRepository() {
+        CachingSecretRepository repository = repository(100);
+        Secret a = store("a");
+        Secret b = store("b");
+        repository.getSecret("a").join();
+
+        Set<Secret> secrets = repository.getSecrets("a", "b").join();
+
+        assertThat(secrets).containsExactlyInAnyOrder(a, b);
+        assertThat(repositoryQueries).containsExactly(List.of("a"), List.of("b"));
+        assertThat(hits()).isEqualTo(1);
+        assertThat(misses()).isEqualTo(2);
+        assertThat(repository.getCachedSecrets("a", "b", "c")).containsExactlyInAnyOrder(a, b);
+        assertThat(hits()).isEqualTo(3);
+    }
+
+    @Test
+    void thatEntriesBeyondMaxSizeAreEvicted() {
+        CachingSecretRepository repository = repository(1);
+        store("a");
+        store("b");
+
+        repository.getSecret("a").join();
+        repository.getSecret("b").join();
+
+        assertThat(evictions()).isEqualTo(1);
+        assertThat(repository.getCachedSecrets("a", "b")).hasSize(1);
+    }
+
+    @Test
+    void thatDeleteInvalidatesTheEntry() {
+        CachingSecretRepository repository = repository(100);
+        store("a");
+        repository.getSecret("a").join();
+
+        repository.deleteSecret("a").join();
+
+        assertThat(repository.getCachedSecrets("a")).isEmpty();
+        assertThat(repository.getSecret("a").join()).isNull();
+        assertThat(repositoryQueries).containsExactly(List.of("a"), List.of("a"));
+    }
+
+    @Test
+    void thatCreatedSecretsAreCachedAsStored() {
+        CachingSecretRepository repository = repository(100);
+        Secret stored = store("a");
+        Secret created = SecretGenerator.generate("b", "AES256");
+
+        Set<Secret> secrets = repository.createOrGetSecrets(SecretGenerator.generate("a", "AES256"), created).join();
+
+        assertThat(secrets).containsExactlyInAnyOrder(stored, created);
+        assertThat(repository.getSecrets("a", "b").join()).containsExactlyInAnyOrder(stored, created);
+        assertThat(repositoryQueries).isEmpty();
+    }
+
+    @Test
+    void thatRotationInvalidatesTheRotatedEntries() {
+        CachingSecretRepository repository = repository(100);
+        Secret kept = store("a");
+        store("b");
+        repository.getSecrets("a", "b").join();
+        Secret rotated = SecretGenerator.generate("b", "AES256");
+
+        repository.rotateSecrets(Long.MAX_VALUE, rotated).join();
+
+        assertThat(repository.getCachedSecrets("a", "b")).containsExactly(kept);
+        assertThat(repository.getSecret("b").join()).isEqualTo(rotated);
+    }
+
+    @Test
+    void thatDeleteAllInvalidatesEveryEntry() {
+        CachingSecretRepository repository = repository(100);
+        store("a");
+        store("b");
+        repository.getSecrets("a", "b").join();
+
+        repository.deleteAllSecrets().join();
+
+        assertThat(repository.getCachedSecrets("a", "b")).isEmpty();
+    }
+}
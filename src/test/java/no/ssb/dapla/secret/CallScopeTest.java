@@ -0,0 +1,54 @@
+package no.ssb.dapla.secret;
+
+import io.grpc.Context;
+import io.grpc.Deadline;
+import io.grpc.Status;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class CallScopeTest {
+
+    @Test
+    void thatCancelledCallCancelsBoundWork() {
+        Context.CancellableContext context = Context.current().withCancellation();
+        CallScope scope = context.call(CallScope::current);
+        CompletableFuture<String> downstream = new CompletableFuture<>();
+        CompletableFuture<String> bound = scope.bind(downstream);
+
+        context.cancel(new RuntimeException("client went away"));
+
+        assertThat(bound).isCancelled();
+        assertThat(downstream).isCancelled();
+        assertThatThrownBy(scope::throwIfCancelled).isInstanceOf(CompletionException.class);
+    }
+
+    @Test
+    void thatNormallyClosedCallIsNotCancelled() {
+        Context.CancellableContext context = Context.current().withCancellation();
+        CallScope scope = context.call(CallScope::current);
+
+        context.cancel(null);
+
+        assertThat(scope.isCancelled()).isFalse();
+    }
+
+    @Test
+    void thatDeadlineFailsBoundWork() {
+        CallScope scope = new CallScope(Deadline.after(10, TimeUnit.MILLISECONDS));
+        CompletableFuture<String> downstream = new CompletableFuture<>();
+
+        assertThatThrownBy(() -> scope.bind(downstream).join()).hasCauseInstanceOf(TimeoutException.class);
+        assertThat(downstream.handle((value, throwable) -> throwable).orTimeout(5, TimeUnit.SECONDS).join())
+                .isInstanceOf(CancellationException.class);
+        assertThat(SecretServiceGrpc.statusOf(new CompletionException(new TimeoutException())).getCode())
+                .isEqualTo(Status.Code.DEADLINE_EXCEEDED);
+    }
+}
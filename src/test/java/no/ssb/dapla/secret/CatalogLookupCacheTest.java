@@ -0,0 +1,196 @@
+package no.ssb.dapla.secret;
+
+import io.grpc.Status;
+import io.grpc.StatusException;
+import io.helidon.config.Config;
+import io.helidon.config.ConfigSources;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CatalogLookupCacheTest {
+
+    static final String DATASET_PATH = "/directory/a-dataset";
+
+    static Config config(String ttlMillis, String staleMillis, String notFoundTtlMillis) {
+        return Config.create(ConfigSources.create(Map.of(
+                "ttl-millis", ttlMillis,
+                "stale-millis", staleMillis,
+                "not-found-ttl-millis", notFoundTtlMillis)));
+    }
+
+    // entries with a time-to-live of 0 are only stale or expired once the clock has moved on
+    static void letClockAdvance() throws InterruptedException {
+        Thread.sleep(2);
+    }
+
+    @Test
+    void thatConcurrentLookupsShareOneCatalogCall() {
+        CatalogLookupCache<String> cache = new CatalogLookupCache<>(Config.empty());
+        AtomicInteger calls = new AtomicInteger();
+        CompletableFuture<String> remote = new CompletableFuture<>();
+
+        CompletableFuture<String> first = cache.get(DATASET_PATH, path -> {
+            calls.incrementAndGet();
+            return remote;
+        });
+        CompletableFuture<String> second = cache.get(DATASET_PATH, path -> {
+            calls.incrementAndGet();
+            return remote;
+        });
+        remote.complete("dataset-id");
+
+        assertThat(first.join()).isEqualTo("dataset-id");
+        assertThat(second.join()).isEqualTo("dataset-id");
+        assertThat(calls).hasValue(1);
+    }
+
+    @Test
+    void thatSharedCallIsCancelledOnlyWhenEveryLookupIsCancelled() {
+        CatalogLookupCache<String> cache = new CatalogLookupCache<>(Config.empty());
+        CompletableFuture<String> remote = new CompletableFuture<>();
+        CompletableFuture<String> first = cache.get(DATASET_PATH, path -> remote);
+        CompletableFuture<String> second = cache.get(DATASET_PATH, path -> remote);
+
+        first.cancel(true);
+        assertThat(remote).isNotCancelled();
+
+        second.cancel(true);
+        assertThat(remote).isCancelled();
+        assertThat(cache.get(DATASET_PATH, path -> CompletableFuture.completedFuture("dataset-id")).join()).isEqualTo("dataset-id");
+    }
+
+    @Test
+    void thatStaleEntriesAreServedWhileOneRefreshReplacesThem() throws InterruptedException {
+        CatalogLookupCache<String> cache = new CatalogLookupCache<>(config("0", "60000", "5000"));
+        AtomicInteger calls = new AtomicInteger();
+        cache.get(DATASET_PATH, path -> CompletableFuture.completedFuture("old-id")).join();
+        letClockAdvance();
+        CompletableFuture<String> refresh = new CompletableFuture<>();
+
+        CompletableFuture<String> first = cache.get(DATASET_PATH, path -> {
+            calls.incrementAndGet();
+            return refresh;
+        });
+        CompletableFuture<String> second = cache.get(DATASET_PATH, path -> {
+            calls.incrementAndGet();
+            return refresh;
+        });
+
+        assertThat(first.join()).isEqualTo("old-id");
+        assertThat(second.join()).isEqualTo("old-id");
+        assertThat(calls).hasValue(1);
+
+        refresh.complete("new-id");
+        assertThat(cache.get(DATASET_PATH, path -> new CompletableFuture<>()).join()).isEqualTo("new-id");
+    }
+
+    @Test
+    void thatFailedRefreshKeepsServingTheStaleEntry() throws InterruptedException {
+        CatalogLookupCache<String> cache = new CatalogLookupCache<>(config("0", "60000", "5000"));
+        cache.get(DATASET_PATH, path -> CompletableFuture.completedFuture("old-id")).join();
+        letClockAdvance();
+
+        CompletableFuture<String> stale = cache.get(DATASET_PATH,
+                path -> CompletableFuture.failedFuture(new StatusException(Status.UNAVAILABLE)));
+
+        assertThat(stale.join()).isEqualTo("old-id");
+        assertThat(cache.get(DATASET_PATH, path -> new CompletableFuture<>()).join()).isEqualTo("old-id");
+    }
+
+    @Test
+    void thatNotFoundIsCachedForItsOwnTtl() {
+        CatalogLookupCache<String> cache = new CatalogLookupCache<>(config("60000", "60000", "60000"));
+        AtomicInteger calls = new AtomicInteger();
+
+        CompletableFuture<String> first = cache.get(DATASET_PATH, path -> {
+            calls.incrementAndGet();
+            return CompletableFuture.failedFuture(new StatusException(Status.NOT_FOUND));
+        });
+        CompletableFuture<String> second = cache.get(DATASET_PATH, path -> {
+            calls.incrementAndGet();
+            return CompletableFuture.completedFuture("dataset-id");
+        });
+
+        assertThat(first).isCompletedExceptionally();
+        assertThat(second).isCompletedExceptionally();
+        assertThat(calls).hasValue(1);
+    }
+
+    @Test
+    void thatExpiredNotFoundIsLookedUpAgain() throws InterruptedException {
+        CatalogLookupCache<String> cache = new CatalogLookupCache<>(config("60000", "60000", "0"));
+
+        CompletableFuture<String> notFound = cache.get(DATASET_PATH,
+                path -> CompletableFuture.failedFuture(new StatusException(Status.NOT_FOUND)));
+        letClockAdvance();
+        CompletableFuture<String> found = cache.get(DATASET_PATH, path -> CompletableFuture.completedFuture("dataset-id"));
+
+        assertThat(notFound).isCompletedExceptionally();
+        assertThat(found.join()).isEqualTo("dataset-id");
+    }
+
+    @Test
+    void thatOtherFailuresAreNotCached() {
+        CatalogLookupCache<String> cache = new CatalogLookupCache<>(Config.empty());
+        AtomicInteger calls = new AtomicInteger();
+
+        CompletableFuture<String> failed = cache.get(DATASET_PATH, path -> {
+            calls.incrementAndGet();
+            return CompletableFuture.failedFuture(new StatusException(Status.UNAVAILABLE));
+        });
+        CompletableFuture<String> retried = cache.get(DATASET_PATH, path -> {
+            calls.incrementAndGet();
+            return CompletableFuture.completedFuture("dataset-id");
+        });
+
+        assertThat(failed).isCompletedExceptionally();
+        assertThat(retried.join()).isEqualTo("dataset-id");
+        assertThat(calls).hasValue(2);
+    }
+
+    @Test
+    void thatDeadlineFailuresAreNotCached() {
+        CatalogLookupCache<String> cache = new CatalogLookupCache<>(Config.empty());
+
+        CompletableFuture<String> failed = cache.get(DATASET_PATH,
+                path -> CompletableFuture.failedFuture(new StatusException(Status.DEADLINE_EXCEEDED)));
+        CompletableFuture<String> retried = cache.get(DATASET_PATH, path -> CompletableFuture.completedFuture("dataset-id"));
+
+        assertThat(failed).isCompletedExceptionally();
+        assertThat(retried.join()).isEqualTo("dataset-id");
+    }
+
+    @Test
+    void thatLookupsThatThrowAreNotCached() {
+        CatalogLookupCache<String> cache = new CatalogLookupCache<>(Config.empty());
+
+        CompletableFuture<String> failed = cache.get(DATASET_PATH, path -> {
+            throw new IllegalStateException("catalog channel is shut down");
+        });
+        CompletableFuture<String> retried = cache.get(DATASET_PATH, path -> CompletableFuture.completedFuture("dataset-id"));
+
+        assertThat(failed).isCompletedExceptionally();
+        assertThat(retried.join()).isEqualTo("dataset-id");
+    }
+
+    @Test
+    void thatRefreshThatThrowsLetsTheNextRequestRefresh() throws InterruptedException {
+        CatalogLookupCache<String> cache = new CatalogLookupCache<>(config("0", "60000", "5000"));
+        cache.get(DATASET_PATH, path -> CompletableFuture.completedFuture("old-id")).join();
+        letClockAdvance();
+
+        CompletableFuture<String> stale = cache.get(DATASET_PATH, path -> {
+            throw new IllegalStateException("catalog channel is shut down");
+        });
+        CompletableFuture<String> refreshing = cache.get(DATASET_PATH, path -> CompletableFuture.completedFuture("new-id"));
+
+        assertThat(stale.join()).isEqualTo("old-id");
+        assertThat(refreshing.join()).isEqualTo("old-id");
+        assertThat(cache.get(DATASET_PATH, path -> new CompletableFuture<>()).join()).isEqualTo("new-id");
+    }
+}
@@ -0,0 +1,64 @@
+package no.ssb.dapla.secret;
+
+import io.helidon.config.Config;
+import io.helidon.config.ConfigSources;
+import io.helidon.metrics.RegistryFactory;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class HedgedCallsTest {
+
+    final MetricRegistry metricRegistry = RegistryFactory.getInstance().getRegistry(MetricRegistry.Type.APPLICATION);
+    final HedgedCalls hedgedCalls = new HedgedCalls(Config.create(ConfigSources.create(Map.of(
+            "enabled", "true",
+            "min-delay-millis", "10"
+    ))), new StageMetrics(metricRegistry), metricRegistry);
+
+    @AfterEach
+    void close() {
+        hedgedCalls.close();
+    }
+
+    @Test
+    void thatSlowCallIsHedgedAndCancelled() {
+        List<CompletableFuture<String>> attempts = new ArrayList<>();
+        CompletableFuture<String> slow = new CompletableFuture<>();
+
+        CompletableFuture<String> result = hedgedCalls.call("test.slow", () -> {
+            CompletableFuture<String> attempt = attempts.isEmpty() ? slow : CompletableFuture.completedFuture("hedged");
+            attempts.add(attempt);
+            return attempt;
+        });
+
+        assertThat(result.orTimeout(5, TimeUnit.SECONDS).join()).isEqualTo("hedged");
+        assertThat(attempts).hasSize(2);
+        // the losing call is cancelled by the thread that completed the result, possibly after join returns
+        assertThat(slow.handle((value, throwable) -> throwable).orTimeout(5, TimeUnit.SECONDS).join())
+                .isInstanceOf(CancellationException.class);
+    }
+
+    @Test
+    void thatFastCallIsNotHedged() throws InterruptedException {
+        List<CompletableFuture<String>> attempts = new ArrayList<>();
+
+        CompletableFuture<String> result = hedgedCalls.call("test.fast", () -> {
+            CompletableFuture<String> attempt = CompletableFuture.completedFuture("first");
+            attempts.add(attempt);
+            return attempt;
+        });
+        Thread.sleep(50);
+
+        assertThat(result.join()).isEqualTo("first");
+        assertThat(attempts).hasSize(1);
+    }
+}
@@ -0,0 +1,126 @@
+package no.ssb.dapla.secret;
+
+import io.helidon.config.Config;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PgHealthMonitorTest {
+
+    final AtomicLong clock = new AtomicLong(Duration.ofHours(1).toNanos());
+    final List<Boolean> healthChanges = new ArrayList<>();
+    final PgHealthMonitor monitor = new PgHealthMonitor(Config.empty(), healthChanges::add, clock::get);
+
+    @Test
+    void thatCircuitOpensWhenFailureRateCrossesThreshold() {
+        for (int i = 0; i < 10; i++) {
+            monitor.record(false, true, clock.get());
+        }
+        for (int i = 0; i < 9; i++) {
+            monitor.record(false, false, clock.get());
+        }
+        assertThat(monitor.state()).isEqualTo(PgHealthMonitor.CLOSED);
+
+        monitor.record(false, false, clock.get());
+
+        assertThat(monitor.state()).isEqualTo(PgHealthMonitor.OPEN);
+        assertThat(monitor.tryAcquire()).isEqualTo(PgHealthMonitor.REJECTED);
+        assertThat(healthChanges).containsExactly(false);
+    }
+
+    @Test
+    void thatSlowQueriesCountAsFailures() {
+        for (int i = 0; i < 20; i++) {
+            monitor.record(false, true, clock.get() - Duration.ofSeconds(3).toNanos());
+        }
+
+        assertThat(monitor.state()).isEqualTo(PgHealthMonitor.OPEN);
+    }
+
+    @Test
+    void thatOneProbeClosesTheCircuitAfterTheOpenPeriod() {
+        for (int i = 0; i < 20; i++) {
+            monitor.record(false, false, clock.get());
+        }
+        clock.addAndGet(Duration.ofSeconds(6).toNanos());
+
+        assertThat(monitor.tryAcquire()).isEqualTo(PgHealthMonitor.PROBE);
+        assertThat(monitor.tryAcquire()).isEqualTo(PgHealthMonitor.REJECTED);
+        monitor.record(true, true, clock.get());
+
+        assertThat(monitor.state()).isEqualTo(PgHealthMonitor.CLOSED);
+        assertThat(monitor.tryAcquire()).isEqualTo(PgHealthMonitor.PERMITTED);
+        assertThat(healthChanges).containsExactly(false, true);
+    }
+
+    @Test
+    void thatOnlyTheProbeDecidesAHalfOpenCircuit() {
+        for (int i = 0; i < 20; i++) {
+            monitor.record(false, false, clock.get());
+        }
+        clock.addAndGet(Duration.ofSeconds(6).toNanos());
+        assertThat(monitor.tryAcquire()).isEqualTo(PgHealthMonitor.PROBE);
+
+        // queries that were in flight before the circuit opened
+        monitor.record(false, true, clock.get());
+        monitor.record(false, false, clock.get());
+        assertThat(monitor.state()).isEqualTo(PgHealthMonitor.HALF_OPEN);
+
+        monitor.record(true, false, clock.get());
+        assertThat(monitor.state()).isEqualTo(PgHealthMonitor.OPEN);
+        assertThat(healthChanges).containsExactly(false);
+    }
+
+    @Test
+    void thatReleasingTheProbeLetsTheNextCallerProbe() {
+        for (int i = 0; i < 20; i++) {
+            monitor.record(false, false, clock.get());
+        }
+        clock.addAndGet(Duration.ofSeconds(6).toNanos());
+        assertThat(monitor.tryAcquire()).isEqualTo(PgHealthMonitor.PROBE);
+
+        monitor.release(false);
+        assertThat(monitor.tryAcquire()).isEqualTo(PgHealthMonitor.REJECTED);
+
+        monitor.release(true);
+        assertThat(monitor.tryAcquire()).isEqualTo(PgHealthMonitor.PROBE);
+    }
+
+    @Test
+    void thatOutcomesOutsideTheWindowAreForgotten() {
+        for (int i = 0; i < 19; i++) {
+            monitor.record(false, false, clock.get());
+        }
+        clock.addAndGet(Duration.ofSeconds(11).toNanos());
+
+        monitor.record(false, false, clock.get());
+
+        assertThat(monitor.state()).isEqualTo(PgHealthMonitor.CLOSED);
+        assertThat(monitor.failureRate()).isEqualTo(1.0);
+    }
+
+    @Test
+    void thatAProbeThatNeverCompletesLosesItsLease() {
+        for (int i = 0; i < 20; i++) {
+            monitor.record(false, false, clock.get());
+        }
+        clock.addAndGet(Duration.ofSeconds(6).toNanos());
+        assertThat(monitor.tryAcquire()).isEqualTo(PgHealthMonitor.PROBE);
+
+        clock.addAndGet(Duration.ofSeconds(4).toNanos());
+        assertThat(monitor.tryAcquire()).isEqualTo(PgHealthMonitor.REJECTED);
+
+        clock.addAndGet(Duration.ofSeconds(1).toNanos());
+        assertThat(monitor.tryAcquire()).isEqualTo(PgHealthMonitor.PROBE);
+        assertThat(monitor.tryAcquire()).isEqualTo(PgHealthMonitor.REJECTED);
+        monitor.record(true, true, clock.get());
+
+        assertThat(monitor.state()).isEqualTo(PgHealthMonitor.CLOSED);
+        assertThat(healthChanges).containsExactly(false, true);
+    }
+}
@@ -0,0 +1,215 @@
+package no.ssb.dapla.secret;
+
+import io.grpc.CallOptions;
+import io.grpc.ClientCall;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import io.helidon.config.Config;
+import io.helidon.metrics.RegistryFactory;
+import no.ssb.dapla.auth.dataset.protobuf.AccessCheckRequest;
+import no.ssb.dapla.auth.dataset.protobuf.AccessCheckResponse;
+import no.ssb.dapla.auth.dataset.protobuf.AuthServiceGrpc;
+import no.ssb.dapla.catalog.protobuf.CatalogServiceGrpc;
+import no.ssb.dapla.catalog.protobuf.Dataset;
+import no.ssb.dapla.catalog.protobuf.GetByNameDatasetRequest;
+import no.ssb.dapla.catalog.protobuf.GetByNameDatasetResponse;
+import no.ssb.dapla.catalog.protobuf.PseudoConfig;
+import no.ssb.dapla.catalog.protobuf.SecretPseudoConfigItem;
+import no.ssb.dapla.secret.service.protobuf.GetSecretsRequest;
+import no.ssb.dapla.secret.service.protobuf.GetSecretsResponse;
+import no.ssb.dapla.secret.service.protobuf.Secret;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SecretBatchGrpcTest {
+
+    static final String DENIED_DATASET = "/directory/denied";
+    static final String MISSING_DATASET = "/directory/missing";
+
+    final MetricRegistry metricRegistry = RegistryFactory.getInstance().getRegistry(MetricRegistry.Type.APPLICATION);
+    final StageMetrics metrics = new StageMetrics(metricRegistry);
+    final HedgedCalls hedgedCalls = new HedgedCalls(Config.empty(), metrics, metricRegistry);
+    final Map<String, List<String>> secretIdsByDataset = new LinkedHashMap<>();
+    final Map<String, Secret> storedSecrets = new LinkedHashMap<>();
+    final List<List<String>> repositoryQueries = new CopyOnWriteArrayList<>();
+
+    Server server;
+    ManagedChannel channel;
+
+    @BeforeEach
+    void startServices() throws IOException {
+        secretIdsByDataset.put("/directory/a", List.of("shared", "a-only"));
+        secretIdsByDataset.put("/directory/b", List.of("shared", "b-only"));
+        secretIdsByDataset.put(DENIED_DATASET, List.of("denied-only"));
+        for (String id : List.of("shared", "a-only", "b-only", "denied-only")) {
+            storedSecrets.put(id, SecretGenerator.generate(id, "AES256"));
+        }
+
+        String serverName = InProcessServerBuilder.generateName();
+        channel = InProcessChannelBuilder.forName(serverName).directExecutor().build();
+        SecretRepository repository = new SecretRepository(null, metrics) {
+            @Override
+            public CompletableFuture<Set<Secret>> getSecrets(String... ids) {
+                repositoryQueries.add(List.of(ids));
+                return CompletableFuture.completedFuture(Arrays.stream(ids)
+                        .map(storedSecrets::get)
+                        .filter(Objects::nonNull)
+                        .collect(Collectors.toSet()));
+            }
+        };
+        SecretServiceGrpc secretService = new SecretServiceGrpc(repository,
+                AuthServiceGrpc.newFutureStub(channel),
+                CatalogServiceGrpc.newFutureStub(channel),
+                new AccessDecisionCache(Config.empty()),
+                new CatalogLookupCache<>(Config.empty()),
+                new CatalogLookupCache<>(Config.empty()),
+                null,
+                metrics,
+                hedgedCalls);
+        server = InProcessServerBuilder.forName(serverName)
+                .addService(new AuthServiceGrpc.AuthServiceImplBase() {
+                    @Override
+                    public void hasAccess(AccessCheckRequest request, StreamObserver<AccessCheckResponse> responseObserver) {
+                        responseObserver.onNext(AccessCheckResponse.newBuilder().setAllowed(!DENIED_DATASET.equals(request.getNamespace())).build());
+                        responseObserver.onCompleted();
+                    }
+                })
+                .addService(new CatalogServiceGrpc.CatalogServiceImplBase() {
+                    @Override
+                    public void getByName(GetByNameDatasetRequest request, StreamObserver<GetByNameDatasetResponse> responseObserver) {
+                        List<String> secretIds = secretIdsByDataset.get(String.join("/", request.getNameList()));
+                        GetByNameDatasetResponse.Builder response = GetByNameDatasetResponse.newBuilder();
+                        if (secretIds != null) {
+                            response.setDataset(Dataset.newBuilder()
+                                    .setState(Dataset.DatasetState.INPUT)
+                                    .setValuation(Dataset.Valuation.INTERNAL)
+                                    .setPseudoConfig(PseudoConfig.newBuilder().addAllSecrets(secretIds.stream()
+                                            .map(id -> SecretPseudoConfigItem.newBuilder().setId(id).build())
+                                            .collect(Collectors.toList()))));
+                        }
+                        responseObserver.onNext(response.build());
+                        responseObserver.onCompleted();
+                    }
+                })
+                .addService(new SecretBatchGrpc(secretService, metrics, 10))
+                .directExecutor()
+                .build()
+                .start();
+    }
+
+    @AfterEach
+    void stopServices() throws InterruptedException {
+        channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        hedgedCalls.close();
+    }
+
+    static class BatchResult {
+        final List<GetSecretsResponse> responses = new CopyOnWriteArrayList<>();
+        final CompletableFuture<Metadata> trailers = new CompletableFuture<>();
+        volatile Status status;
+    }
+
+    BatchResult getSecretsBatch(String... datasetPaths) {
+        BatchResult result = new BatchResult();
+        ClientCall<GetSecretsRequest, GetSecretsResponse> call = channel.newCall(SecretBatchGrpc.GET_SECRETS_BATCH_METHOD, CallOptions.DEFAULT);
+        call.start(new ClientCall.Listener<>() {
+            @Override
+            public void onMessage(GetSecretsResponse message) {
+                result.responses.add(message);
+            }
+
+            @Override
+            public void onClose(Status status, Metadata trailers) {
+                result.status = status;
+                result.trailers.complete(trailers);
+            }
+        }, new Metadata());
+        call.request(datasetPaths.length);
+        for (String datasetPath : datasetPaths) {
+            call.sendMessage(GetSecretsRequest.newBuilder().setDatasetPath(datasetPath).build());
+        }
+        call.halfClose();
+        result.trailers.orTimeout(5, TimeUnit.SECONDS).join();
+        return result;
+    }
+
+    Set<String> secretIds(GetSecretsResponse response) {
+        return response.getSecretsList().stream().map(Secret::getId).collect(Collectors.toSet());
+    }
+
+    @Test
+    void thatResponsesFollowRequestOrder() {
+        BatchResult result = getSecretsBatch("/directory/b", "/directory/a");
+
+        assertThat(result.status.isOk()).isTrue();
+        assertThat(result.responses).hasSize(2);
+        assertThat(secretIds(result.responses.get(0))).containsExactlyInAnyOrder("shared", "b-only");
+        assertThat(secretIds(result.responses.get(1))).containsExactlyInAnyOrder("shared", "a-only");
+        assertThat(result.responses.get(0).getSecretsList()).contains(storedSecrets.get("shared"), storedSecrets.get("b-only"));
+        assertThat(result.trailers.join().get(SecretBatchGrpc.SECRET_BATCH_ERRORS_TRAILER)).isNull();
+    }
+
+    @Test
+    void thatSharedSecretIdsAreReadWithOneQuery() {
+        getSecretsBatch("/directory/a", "/directory/b", "/directory/a");
+
+        assertThat(repositoryQueries).hasSize(1);
+        assertThat(repositoryQueries.get(0)).containsExactlyInAnyOrder("shared", "a-only", "b-only");
+    }
+
+    @Test
+    void thatFailedDatasetsGetEmptyResponsesAndAreListedInTrailer() {
+        BatchResult result = getSecretsBatch(MISSING_DATASET, "/directory/a", DENIED_DATASET);
+
+        assertThat(result.status.isOk()).isTrue();
+        assertThat(result.responses).hasSize(3);
+        assertThat(result.responses.get(0).getSecretsList()).isEmpty();
+        assertThat(secretIds(result.responses.get(1))).containsExactlyInAnyOrder("shared", "a-only");
+        assertThat(result.responses.get(2).getSecretsList()).isEmpty();
+        assertThat(SecretBatchGrpc.decodeErrors(result.trailers.join().get(SecretBatchGrpc.SECRET_BATCH_ERRORS_TRAILER))).containsOnly(
+                Map.entry(MISSING_DATASET, Status.Code.NOT_FOUND),
+                Map.entry(DENIED_DATASET, Status.Code.PERMISSION_DENIED)
+        );
+        assertThat(repositoryQueries).hasSize(1);
+        assertThat(repositoryQueries.get(0)).doesNotContain("denied-only");
+    }
+
+    @Test
+    void thatErrorsSurviveEncodeAndDecode() {
+        Map<String, Status> errors = new LinkedHashMap<>();
+        errors.put("/directory/a-dataset", Status.PERMISSION_DENIED.withDescription("ignored"));
+        errors.put("/directory/with,separators=", Status.NOT_FOUND);
+
+        assertThat(SecretBatchGrpc.decodeErrors(SecretBatchGrpc.encodeErrors(errors))).containsExactly(
+                Map.entry("/directory/a-dataset", Status.Code.PERMISSION_DENIED),
+                Map.entry("/directory/with,separators=", Status.Code.NOT_FOUND)
+        );
+    }
+
+    @Test
+    void thatMissingTrailerDecodesToNoErrors() {
+        assertThat(SecretBatchGrpc.decodeErrors(null)).isEmpty();
+    }
+}
@@ -0,0 +1,46 @@
+package no.ssb.dapla.secret;
+
+import io.vertx.sqlclient.Tuple;
+import no.ssb.dapla.secret.service.protobuf.Secret;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class SecretEncryptionTest {
+
+    static final SecretEncryption ENCRYPTION = new SecretEncryption(Map.of(1, new SecretKeySpec(new byte[32], "AES")), 1);
+
+    @Test
+    void thatEncodedSecretsAreEncryptedAndDecodeToTheOriginal() {
+        Secret secret = SecretGenerator.generate("secret-id", "AES256");
+
+        Tuple row = SecretRowCodec.encode(secret, ENCRYPTION);
+
+        assertThat(row.getInteger(3)).isEqualTo(1);
+        assertThat(row.getBuffer(2).getBytes()).isNotEqualTo(secret.getContent().toByteArray());
+        assertThat(SecretRowCodec.decode(row, ENCRYPTION)).isEqualTo(secret);
+    }
+
+    @Test
+    void thatPlaintextRowsAreDecodedAsIs() {
+        Secret secret = SecretGenerator.generate("secret-id", "AES256");
+
+        Tuple row = SecretRowCodec.encode(secret, SecretEncryption.disabled());
+
+        assertThat(row.getInteger(3)).isNull();
+        assertThat(SecretRowCodec.decode(row, ENCRYPTION)).isEqualTo(secret);
+    }
+
+    @Test
+    void thatContentCannotBeMovedToAnotherSecret() {
+        Secret secret = SecretGenerator.generate("secret-id", "AES256");
+        byte[] content = ENCRYPTION.encrypt(secret.getId(), secret.getType(), secret.getContent().toByteArray());
+
+        assertThatThrownBy(() -> ENCRYPTION.decrypt("other-secret-id", secret.getType(), 1, content))
+                .isInstanceOf(IllegalStateException.class);
+    }
+}
@@ -0,0 +1,147 @@
+package no.ssb.dapla.secret;
+
+import io.helidon.config.Config;
+import io.helidon.config.ConfigSources;
+import io.helidon.metrics.RegistryFactory;
+import no.ssb.dapla.secret.service.protobuf.Secret;
+import org.eclipse.microprofile.metrics.MetricID;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SecretKeyPoolTest {
+
+    final MetricRegistry metricRegistry = RegistryFactory.getInstance().getRegistry(MetricRegistry.Type.APPLICATION);
+    final RefillExecutor refillExecutor = new RefillExecutor();
+
+    // the counter is shared by every key pool in the jvm, so tests compare against its value at the start
+    final long initialMisses = metricRegistry.counter("secret.keypool.misses").getCount();
+
+    /**
+     * An executor that keeps the refills it is given until the test runs them.
+     */
+    static class RefillExecutor extends AbstractExecutorService {
+        final Deque<Runnable> refills = new ArrayDeque<>();
+        boolean shutdown;
+
+        @Override
+        public void execute(Runnable command) {
+            refills.addLast(command);
+        }
+
+        void runRefills() {
+            while (!refills.isEmpty()) {
+                refills.pollFirst().run();
+            }
+        }
+
+        @Override
+        public void shutdown() {
+            shutdown = true;
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            shutdown = true;
+            return List.copyOf(refills);
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return shutdown;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return shutdown;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return shutdown;
+        }
+    }
+
+    SecretKeyPool keyPool() {
+        return new SecretKeyPool(Config.create(ConfigSources.create(Map.of(
+                "types.0", "AES256",
+                "low-watermark", "2",
+                "high-watermark", "4"))), metricRegistry, refillExecutor);
+    }
+
+    int depth() {
+        return (Integer) metricRegistry.getGauges().get(new MetricID("secret.keypool.depth", new Tag("type", "AES256"))).getValue();
+    }
+
+    long misses() {
+        return metricRegistry.counter("secret.keypool.misses").getCount() - initialMisses;
+    }
+
+    @Test
+    void thatPoolIsFilledToTheHighWatermarkInTheBackground() {
+        keyPool();
+
+        assertThat(depth()).isZero();
+        assertThat(refillExecutor.refills).hasSize(1);
+
+        refillExecutor.runRefills();
+
+        assertThat(depth()).isEqualTo(4);
+    }
+
+    @Test
+    void thatEmptyPoolGeneratesInlineWithoutQueueingAnotherRefill() {
+        SecretKeyPool keyPool = keyPool();
+
+        Secret secret = keyPool.generate("a-secret", "AES256");
+
+        assertThat(secret.getId()).isEqualTo("a-secret");
+        assertThat(secret.getContent().size()).isEqualTo(32);
+        assertThat(misses()).isEqualTo(1);
+        assertThat(refillExecutor.refills).hasSize(1);
+    }
+
+    @Test
+    void thatRefillStartsOnlyBelowTheLowWatermark() {
+        SecretKeyPool keyPool = keyPool();
+        refillExecutor.runRefills();
+
+        keyPool.generate("first", "AES256");
+        keyPool.generate("second", "AES256");
+
+        assertThat(depth()).isEqualTo(2);
+        assertThat(refillExecutor.refills).isEmpty();
+
+        Secret third = keyPool.generate("third", "AES256");
+
+        assertThat(third.getContent().size()).isEqualTo(32);
+        assertThat(depth()).isEqualTo(1);
+        assertThat(refillExecutor.refills).hasSize(1);
+        assertThat(misses()).isZero();
+
+        refillExecutor.runRefills();
+
+        assertThat(depth()).isEqualTo(4);
+    }
+
+    @Test
+    void thatOtherTypesAreGeneratedInline() {
+        SecretKeyPool keyPool = keyPool();
+        refillExecutor.runRefills();
+
+        Secret secret = keyPool.generate("a-secret", "AES128");
+
+        assertThat(secret.getContent().size()).isEqualTo(16);
+        assertThat(misses()).isEqualTo(1);
+        assertThat(depth()).isEqualTo(4);
+    }
+}
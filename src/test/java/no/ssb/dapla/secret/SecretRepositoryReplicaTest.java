@@ -0,0 +1,140 @@
+package no.ssb.dapla.secret;
+
+import io.helidon.metrics.RegistryFactory;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.pgclient.PgPool;
+import io.vertx.sqlclient.Row;
+import io.vertx.sqlclient.RowIterator;
+import io.vertx.sqlclient.RowSet;
+import io.vertx.sqlclient.Tuple;
+import no.ssb.dapla.secret.service.protobuf.Secret;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SecretRepositoryReplicaTest {
+
+    final MetricRegistry metricRegistry = RegistryFactory.getInstance().getRegistry(MetricRegistry.Type.APPLICATION);
+    final FakePool primary = new FakePool();
+    final FakePool replica = new FakePool();
+    final SecretRepository repository = new SecretRepository(primary.pool, replica.pool, Duration.ofMinutes(1),
+            new StageMetrics(metricRegistry), SecretEncryption.disabled());
+
+    /**
+     * A pool that answers secret reads from the secrets it holds, accepts every write without storing it, and
+     * records the ids that each read asked for.
+     */
+    static class FakePool {
+        final Map<String, Secret> secrets = new ConcurrentHashMap<>();
+        final List<List<String>> reads = new CopyOnWriteArrayList<>();
+
+        @SuppressWarnings("unchecked")
+        final PgPool pool = (PgPool) Proxy.newProxyInstance(PgPool.class.getClassLoader(), new Class<?>[]{PgPool.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "preparedQuery":
+                    List<String> ids = args[0].equals(SecretRepository.SELECT_SECRET)
+                            ? List.of(((Tuple) args[1]).getString(0))
+                            : List.of(((Tuple) args[1]).getStringArray(0));
+                    reads.add(ids);
+                    ((Handler<AsyncResult<RowSet<Row>>>) args[args.length - 1]).handle(Future.succeededFuture(rowSet(ids.stream()
+                            .map(secrets::get)
+                            .filter(Objects::nonNull)
+                            .map(FakePool::row)
+                            .collect(Collectors.toList()))));
+                    return proxy;
+                case "preparedBatch":
+                    ((Handler<AsyncResult<RowSet<Row>>>) args[args.length - 1]).handle(Future.succeededFuture());
+                    return proxy;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+
+        static Row row(Secret secret) {
+            return (Row) Proxy.newProxyInstance(Row.class.getClassLoader(), new Class<?>[]{Row.class}, (proxy, method, args) -> {
+                switch (method.getName() + (args == null ? "" : args[0])) {
+                    case "getString0":
+                        return secret.getId();
+                    case "getString1":
+                        return secret.getType();
+                    case "getBuffer2":
+                        return Buffer.buffer(secret.getContent().toByteArray());
+                    case "getInteger3":
+                        return null;
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            });
+        }
+
+        @SuppressWarnings("unchecked")
+        static RowSet<Row> rowSet(List<Row> rows) {
+            return (RowSet<Row>) Proxy.newProxyInstance(RowSet.class.getClassLoader(), new Class<?>[]{RowSet.class}, (proxy, method, args) -> {
+                if (!method.getName().equals("iterator")) {
+                    throw new UnsupportedOperationException(method.getName());
+                }
+                Iterator<Row> iterator = rows.iterator();
+                return Proxy.newProxyInstance(RowIterator.class.getClassLoader(), new Class<?>[]{RowIterator.class},
+                        (iteratorProxy, iteratorMethod, iteratorArgs) -> Iterator.class
+                                .getMethod(iteratorMethod.getName(), iteratorMethod.getParameterTypes())
+                                .invoke(iterator, iteratorArgs));
+            });
+        }
+    }
+
+    Secret storeOn(String id, FakePool... pools) {
+        Secret secret = SecretGenerator.generate(id, "AES256");
+        for (FakePool pool : pools) {
+            pool.secrets.put(id, secret);
+        }
+        return secret;
+    }
+
+    @Test
+    void thatReadsGoToTheReplica() {
+        Secret secret = storeOn("a", primary, replica);
+
+        assertThat(repository.getSecrets("a").join()).containsExactly(secret);
+        assertThat(repository.getSecret("a").join()).isEqualTo(secret);
+        assertThat(replica.reads).containsExactly(List.of("a"), List.of("a"));
+        assertThat(primary.reads).isEmpty();
+    }
+
+    @Test
+    void thatReadsShortlyAfterAWriteGoToThePrimary() {
+        Secret secret = storeOn("a", primary);
+        storeOn("b", primary, replica);
+        repository.createSecrets(secret).join();
+
+        assertThat(repository.getSecret("a").join()).isEqualTo(secret);
+        assertThat(repository.getSecrets("a", "b").join()).extracting(Secret::getId).containsExactlyInAnyOrder("a", "b");
+        assertThat(primary.reads).containsExactly(List.of("a"), List.of("a"));
+        assertThat(replica.reads).containsExactly(List.of("b"));
+    }
+
+    @Test
+    void thatIdsMissingOnTheReplicaAreReadFromThePrimaryAndMerged() {
+        Secret replicated = storeOn("a", primary, replica);
+        Secret notYetReplicated = storeOn("b", primary);
+
+        assertThat(repository.getSecrets("a", "b").join()).containsExactlyInAnyOrder(replicated, notYetReplicated);
+        assertThat(repository.getSecret("b").join()).isEqualTo(notYetReplicated);
+        assertThat(replica.reads).containsExactly(Arrays.asList("a", "b"), List.of("b"));
+        assertThat(primary.reads).containsExactly(List.of("b"), List.of("b"));
+    }
+}
@@ -0,0 +1,43 @@
+package no.ssb.dapla.secret;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SecretRepositoryStatementsTest {
+
+    static List<String> sqlConstants() {
+        return Arrays.stream(SecretRepository.class.getDeclaredFields())
+                .filter(field -> Modifier.isStatic(field.getModifiers()) && Modifier.isFinal(field.getModifiers()))
+                .filter(field -> field.getType() == String.class)
+                .map(SecretRepositoryStatementsTest::value)
+                .collect(Collectors.toList());
+    }
+
+    static String value(Field field) {
+        try {
+            field.setAccessible(true);
+            return (String) field.get(null);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Test
+    void thatEveryStatementIsRegistered() {
+        // the prepared statement cache is sized by the registry, so a missing statement would evict another
+        assertThat(sqlConstants()).isNotEmpty();
+        assertThat(SecretRepository.STATEMENTS).containsAll(sqlConstants());
+    }
+
+    @Test
+    void thatRegistryHasNoDuplicates() {
+        assertThat(SecretRepository.STATEMENTS).doesNotHaveDuplicates();
+    }
+}
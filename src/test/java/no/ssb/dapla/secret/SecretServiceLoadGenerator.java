@@ -0,0 +1,149 @@
+package no.ssb.dapla.secret;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.helidon.grpc.server.GrpcServer;
+import no.ssb.dapla.secret.service.protobuf.CreateOrGetSecretsRequest;
+import no.ssb.dapla.secret.service.protobuf.GetSecretsRequest;
+import no.ssb.dapla.secret.service.protobuf.SecretRef;
+import no.ssb.dapla.secret.service.protobuf.SecretServiceGrpc.SecretServiceBlockingStub;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Load generator that starts the application against in-process stand-ins for the auth and catalog services, and
+ * the Postgres started by {@code make start-db}. It drives concurrent getSecrets and createOrGetSecrets traffic and
+ * reports throughput and latency percentiles. Run with {@code mvn -Ploadtest test-compile exec:java}, settings are
+ * read from system properties, see the constants below.
+ */
+public class SecretServiceLoadGenerator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SecretServiceLoadGenerator.class);
+
+    static final int CONCURRENCY = Integer.getInteger("loadtest.concurrency", 32);
+    static final int DURATION_SECONDS = Integer.getInteger("loadtest.duration-seconds", 30);
+    static final int WARMUP_SECONDS = Integer.getInteger("loadtest.warmup-seconds", 5);
+    static final int DATASETS = Integer.getInteger("loadtest.datasets", 100);
+    static final int SECRETS_PER_DATASET = Integer.getInteger("loadtest.secrets-per-dataset", 10);
+    static final double CREATE_RATIO = Double.parseDouble(System.getProperty("loadtest.create-ratio", "0.1"));
+    static final long LATENCY_MILLIS = Long.getLong("loadtest.standin.latency-millis", 2);
+    static final long JITTER_MILLIS = Long.getLong("loadtest.standin.jitter-millis", 3);
+    static final double ERROR_RATE = Double.parseDouble(System.getProperty("loadtest.standin.error-rate", "0.0"));
+
+    public static void main(String[] args) throws Exception {
+        try (StandInServices standInServices = new StandInServices(LATENCY_MILLIS, JITTER_MILLIS, ERROR_RATE, SECRETS_PER_DATASET)) {
+            ManagedChannel standInChannel = InProcessChannelBuilder.forName(standInServices.serverName).build();
+            Application application = (Application) new ApplicationBuilder()
+                    .override(ManagedChannel.class, standInChannel)
+                    .build()
+                    .start()
+                    .toCompletableFuture()
+                    .get(30, TimeUnit.SECONDS);
+            ManagedChannel channel = ManagedChannelBuilder
+                    .forAddress("localhost", application.get(GrpcServer.class).port())
+                    .usePlaintext()
+                    .build();
+            try {
+                SecretServiceBlockingStub stub = no.ssb.dapla.secret.service.protobuf.SecretServiceGrpc.newBlockingStub(channel);
+                run(stub, WARMUP_SECONDS);
+                Result result = run(stub, DURATION_SECONDS);
+                LOG.info(result.report());
+            } finally {
+                channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+                application.stop().toCompletableFuture().get(30, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    static Result run(SecretServiceBlockingStub stub, int durationSeconds) throws Exception {
+        ExecutorService workers = Executors.newFixedThreadPool(CONCURRENCY);
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+        List<Future<Worker>> futures = new ArrayList<>();
+        for (int i = 0; i < CONCURRENCY; i++) {
+            futures.add(workers.submit(() -> new Worker().run(stub, deadline)));
+        }
+        Result result = new Result();
+        for (Future<Worker> future : futures) {
+            result.add(future.get());
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        workers.shutdown();
+        return result;
+    }
+
+    static class Worker {
+        long[] latencies = new long[1024];
+        int count;
+        int errors;
+
+        Worker run(SecretServiceBlockingStub stub, long deadline) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            while (System.nanoTime() < deadline) {
+                String datasetPath = "/loadtest/dataset-" + random.nextInt(DATASETS);
+                long start = System.nanoTime();
+                try {
+                    if (random.nextDouble() < CREATE_RATIO) {
+                        stub.createOrGetSecrets(CreateOrGetSecretsRequest.newBuilder()
+                                .setDatasetPath(datasetPath)
+                                .setDatasetState("RAW")
+                                .setDatasetValuation("SENSITIVE")
+                                .addAllSecretRefs(IntStream.range(0, SECRETS_PER_DATASET)
+                                        .mapToObj(i -> SecretRef.newBuilder().setId(StandInServices.secretId(datasetPath, i)).setType("AES256").build())
+                                        .collect(Collectors.toList()))
+                                .build());
+                    } else {
+                        stub.getSecrets(GetSecretsRequest.newBuilder().setDatasetPath(datasetPath).build());
+                    }
+                } catch (RuntimeException e) {
+                    errors++;
+                }
+                if (count == latencies.length) {
+                    latencies = Arrays.copyOf(latencies, count * 2);
+                }
+                latencies[count++] = System.nanoTime() - start;
+            }
+            return this;
+        }
+    }
+
+    static class Result {
+        long elapsedNanos;
+        long[] latencies = new long[0];
+        int errors;
+
+        void add(Worker worker) {
+            int offset = latencies.length;
+            latencies = Arrays.copyOf(latencies, offset + worker.count);
+            System.arraycopy(worker.latencies, 0, latencies, offset, worker.count);
+            errors += worker.errors;
+        }
+
+        long percentileMicros(double percentile) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100 * latencies.length) - 1;
+            return TimeUnit.NANOSECONDS.toMicros(latencies[Math.max(0, Math.min(index, latencies.length - 1))]);
+        }
+
+        String report() {
+            Arrays.sort(latencies);
+            double seconds = elapsedNanos / 1e9;
+            return String.format("requests: %d, errors: %d, throughput: %.1f req/s, p50: %d us, p99: %d us, p999: %d us",
+                    latencies.length, errors, latencies.length / seconds, percentileMicros(50), percentileMicros(99), percentileMicros(99.9));
+        }
+    }
+}
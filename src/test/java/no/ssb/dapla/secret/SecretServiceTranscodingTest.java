@@ -30,11 +30,15 @@ import org.junit.jupiter.api.extension.ExtendWith;
 
 import javax.inject.Inject;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -102,6 +106,29 @@ class SecretServiceTranscodingTest {
         assertThat(response.getSecretsList()).containsExactly(expectedSecrets.toArray(Secret[]::new));
     }
 
+    @Test
+    void thatConcurrentCreateOrGetReturnsTheStoredSecret() {
+        CreateOrGetSecretsRequest request = CreateOrGetSecretsRequest.newBuilder()
+                .setDatasetPath("/directory/a-dataset")
+                .setDatasetState(DatasetState.RAW.name())
+                .setDatasetValuation(Valuation.SENSITIVE.name())
+                .addSecretRefs(SecretRef.newBuilder().setId("concurrent_secret_id").setType("AES256"))
+                .build();
+
+        List<CreateOrGetSecretsResponse> responses = IntStream.range(0, 10)
+                .mapToObj(i -> CompletableFuture.supplyAsync(() -> testClient.post("/rpc/SecretService/createOrGetSecrets", request, CreateOrGetSecretsResponse.class).expect200Ok().body()))
+                .collect(Collectors.toList())
+                .stream()
+                .map(CompletableFuture::join)
+                .collect(Collectors.toList());
+
+        Set<Secret> expectedSecrets = repositoryGet("concurrent_secret_id");
+        assertThat(expectedSecrets).hasSize(1);
+        for (CreateOrGetSecretsResponse response : responses) {
+            assertThat(response.getSecretsList()).containsExactly(expectedSecrets.toArray(Secret[]::new));
+        }
+    }
+
     public static class SecretServiceTestMockRegistry extends GrpcMockRegistry {
         public SecretServiceTestMockRegistry() {
             add(new AuthServiceGrpc.AuthServiceImplBase() {
@@ -0,0 +1,214 @@
+package no.ssb.dapla.secret;
+
+import io.grpc.CallOptions;
+import io.grpc.ClientCall;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.Server;
+import io.grpc.ServerInterceptors;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.helidon.config.Config;
+import io.helidon.metrics.RegistryFactory;
+import no.ssb.dapla.auth.dataset.protobuf.AuthServiceGrpc;
+import no.ssb.dapla.catalog.protobuf.CatalogServiceGrpc;
+import no.ssb.dapla.secret.service.protobuf.GetSecretsRequest;
+import no.ssb.dapla.secret.service.protobuf.GetSecretsResponse;
+import no.ssb.dapla.secret.service.protobuf.Secret;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class SecretVersionsInterceptorTest {
+
+    static final String DATASET_PATH = "/directory/a-dataset";
+    static final String FIRST_ID = StandInServices.secretId(DATASET_PATH, 0);
+    static final String SECOND_ID = StandInServices.secretId(DATASET_PATH, 1);
+
+    final MetricRegistry metricRegistry = RegistryFactory.getInstance().getRegistry(MetricRegistry.Type.APPLICATION);
+    final StageMetrics metrics = new StageMetrics(metricRegistry);
+    final HedgedCalls hedgedCalls = new HedgedCalls(Config.empty(), metrics, metricRegistry);
+    final Map<String, Long> currentVersions = new ConcurrentHashMap<>();
+    final Map<String, Secret> storedSecrets = new ConcurrentHashMap<>();
+    final List<String> repositoryQueries = new CopyOnWriteArrayList<>();
+
+    StandInServices standInServices;
+    ManagedChannel standInChannel;
+    Server server;
+    ManagedChannel channel;
+
+    @BeforeEach
+    void startServices() throws IOException {
+        for (String id : List.of(FIRST_ID, SECOND_ID)) {
+            currentVersions.put(id, 1L);
+            storedSecrets.put(id, SecretGenerator.generate(id, "AES256"));
+        }
+        SecretRepository delegate = new SecretRepository(null, metrics) {
+            @Override
+            public CompletableFuture<Map<String, Long>> getSecretVersions(String... ids) {
+                repositoryQueries.add("getSecretVersions");
+                return CompletableFuture.completedFuture(Arrays.stream(ids)
+                        .filter(currentVersions::containsKey)
+                        .collect(Collectors.toMap(id -> id, currentVersions::get)));
+            }
+
+            @Override
+            public CompletableFuture<Set<Secret>> getSecretsAtVersions(Map<String, Long> versionsById) {
+                repositoryQueries.add("getSecretsAtVersions");
+                return CompletableFuture.completedFuture(versionsById.keySet().stream()
+                        .map(storedSecrets::get)
+                        .filter(Objects::nonNull)
+                        .collect(Collectors.toSet()));
+            }
+        };
+        SecretRepository repository = new CachingSecretRepository(delegate, Config.empty(), metricRegistry);
+
+        standInServices = new StandInServices(0, 0, 0, 2);
+        standInChannel = InProcessChannelBuilder.forName(standInServices.serverName).directExecutor().build();
+        SecretServiceGrpc secretService = new SecretServiceGrpc(repository,
+                AuthServiceGrpc.newFutureStub(standInChannel),
+                CatalogServiceGrpc.newFutureStub(standInChannel),
+                new AccessDecisionCache(Config.empty()),
+                new CatalogLookupCache<>(Config.empty()),
+                new CatalogLookupCache<>(Config.empty()),
+                null,
+                metrics,
+                hedgedCalls);
+        String serverName = InProcessServerBuilder.generateName();
+        server = InProcessServerBuilder.forName(serverName)
+                .addService(ServerInterceptors.intercept(secretService, new SecretVersionsInterceptor()))
+                .directExecutor()
+                .build()
+                .start();
+        channel = InProcessChannelBuilder.forName(serverName).directExecutor().build();
+    }
+
+    @AfterEach
+    void stopServices() throws InterruptedException {
+        channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        standInChannel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        standInServices.close();
+        hedgedCalls.close();
+    }
+
+    static class ConditionalResult {
+        final CompletableFuture<Metadata> headers = new CompletableFuture<>();
+        final CompletableFuture<Status> status = new CompletableFuture<>();
+        volatile GetSecretsResponse response;
+
+        Map<String, Long> versions() {
+            return SecretVersionsInterceptor.decode(headers.join().get(SecretVersionsInterceptor.SECRET_VERSIONS_HEADER));
+        }
+
+        boolean notModified() {
+            return Boolean.parseBoolean(headers.join().get(SecretVersionsInterceptor.NOT_MODIFIED_HEADER));
+        }
+
+        Set<String> secretIds() {
+            return response.getSecretsList().stream().map(Secret::getId).collect(Collectors.toSet());
+        }
+    }
+
+    ConditionalResult getSecrets(Map<String, Long> knownVersions) {
+        ConditionalResult result = new ConditionalResult();
+        Metadata headers = new Metadata();
+        headers.put(SecretVersionsInterceptor.SECRET_VERSIONS_HEADER, SecretVersionsInterceptor.encode(knownVersions));
+        ClientCall<GetSecretsRequest, GetSecretsResponse> call = channel.newCall(
+                no.ssb.dapla.secret.service.protobuf.SecretServiceGrpc.getGetSecretsMethod(), CallOptions.DEFAULT);
+        call.start(new ClientCall.Listener<>() {
+            @Override
+            public void onHeaders(Metadata headers) {
+                result.headers.complete(headers);
+            }
+
+            @Override
+            public void onMessage(GetSecretsResponse message) {
+                result.response = message;
+            }
+
+            @Override
+            public void onClose(Status status, Metadata trailers) {
+                result.status.complete(status);
+            }
+        }, headers);
+        call.request(1);
+        call.sendMessage(GetSecretsRequest.newBuilder().setDatasetPath(DATASET_PATH).build());
+        call.halfClose();
+        assertThat(result.status.orTimeout(5, TimeUnit.SECONDS).join().isOk()).isTrue();
+        return result;
+    }
+
+    @Test
+    void thatUnchangedSecretsAreNotSentAndTheirVersionsAreServedFromTheCache() {
+        Map<String, Long> knownVersions = Map.of(FIRST_ID, 1L, SECOND_ID, 1L);
+
+        ConditionalResult first = getSecrets(knownVersions);
+        ConditionalResult second = getSecrets(knownVersions);
+
+        assertThat(first.notModified()).isTrue();
+        assertThat(first.response.getSecretsList()).isEmpty();
+        assertThat(first.versions()).isEqualTo(knownVersions);
+        assertThat(second.notModified()).isTrue();
+        assertThat(second.response.getSecretsList()).isEmpty();
+        assertThat(repositoryQueries).containsExactly("getSecretVersions");
+    }
+
+    @Test
+    void thatOnlyChangedSecretsAreSent() {
+        currentVersions.put(SECOND_ID, 2L);
+
+        ConditionalResult result = getSecrets(Map.of(FIRST_ID, 1L, SECOND_ID, 1L));
+
+        assertThat(result.notModified()).isFalse();
+        assertThat(result.secretIds()).containsExactly(SECOND_ID);
+        assertThat(result.versions()).isEqualTo(Map.of(FIRST_ID, 1L, SECOND_ID, 2L));
+        assertThat(repositoryQueries).containsExactly("getSecretVersions", "getSecretsAtVersions");
+    }
+
+    @Test
+    void thatVersionsOfSecretsOutsideTheDatasetAreIgnored() {
+        ConditionalResult result = getSecrets(Map.of(FIRST_ID, 1L, SECOND_ID, 1L, "/directory/other/secret-0", 3L));
+
+        assertThat(result.notModified()).isTrue();
+        assertThat(result.response.getSecretsList()).isEmpty();
+        assertThat(result.versions()).doesNotContainKey("/directory/other/secret-0");
+    }
+
+    @Test
+    void thatVersionsSurviveEncodeAndDecode() {
+        Map<String, Long> versions = new LinkedHashMap<>();
+        versions.put("secret_id", 3L);
+        versions.put("id,with=separators", 42L);
+
+        assertThat(SecretVersionsInterceptor.decode(SecretVersionsInterceptor.encode(versions))).isEqualTo(versions);
+    }
+
+    @Test
+    void thatEmptyVersionsDecodeToEmptyMap() {
+        assertThat(SecretVersionsInterceptor.decode("")).isEmpty();
+    }
+
+    @Test
+    void thatMissingVersionIsRejected() {
+        assertThatThrownBy(() -> SecretVersionsInterceptor.decode("secret_id")).isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,96 @@
+package no.ssb.dapla.secret;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.helidon.config.Config;
+import io.helidon.metrics.RegistryFactory;
+import no.ssb.dapla.auth.dataset.protobuf.AuthServiceGrpc;
+import no.ssb.dapla.catalog.protobuf.CatalogServiceGrpc;
+import no.ssb.dapla.secret.service.protobuf.GetSecretsRequest;
+import no.ssb.dapla.secret.service.protobuf.GetSecretsResponse;
+import no.ssb.dapla.secret.service.protobuf.Secret;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class SharedLookupDeadlineTest {
+
+    static final String DATASET_PATH = "/directory/a-dataset";
+
+    final MetricRegistry metricRegistry = RegistryFactory.getInstance().getRegistry(MetricRegistry.Type.APPLICATION);
+    final StageMetrics metrics = new StageMetrics(metricRegistry);
+    final HedgedCalls hedgedCalls = new HedgedCalls(Config.empty(), metrics, metricRegistry);
+
+    StandInServices standInServices;
+    ManagedChannel standInChannel;
+    Server server;
+    ManagedChannel channel;
+
+    @BeforeEach
+    void startServices() throws IOException {
+        // every catalog and auth call takes longer than the short deadline, and well within the default one
+        standInServices = new StandInServices(300, 0, 0, 2);
+        standInChannel = InProcessChannelBuilder.forName(standInServices.serverName).build();
+        SecretRepository repository = new SecretRepository(null, metrics) {
+            @Override
+            public CompletableFuture<Set<Secret>> getSecrets(String... ids) {
+                return CompletableFuture.completedFuture(Set.of());
+            }
+        };
+        SecretServiceGrpc secretService = new SecretServiceGrpc(repository,
+                AuthServiceGrpc.newFutureStub(standInChannel),
+                CatalogServiceGrpc.newFutureStub(standInChannel),
+                new AccessDecisionCache(Config.empty()),
+                new CatalogLookupCache<>(Config.empty()),
+                new CatalogLookupCache<>(Config.empty()),
+                null,
+                metrics,
+                hedgedCalls);
+        String serverName = InProcessServerBuilder.generateName();
+        server = InProcessServerBuilder.forName(serverName)
+                .addService(secretService)
+                .build()
+                .start();
+        channel = InProcessChannelBuilder.forName(serverName).build();
+    }
+
+    @AfterEach
+    void stopServices() throws InterruptedException {
+        channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        standInChannel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        standInServices.close();
+        hedgedCalls.close();
+    }
+
+    ListenableFuture<GetSecretsResponse> getSecrets(long deadlineMillis) {
+        return no.ssb.dapla.secret.service.protobuf.SecretServiceGrpc.newFutureStub(channel)
+                .withDeadlineAfter(deadlineMillis, TimeUnit.MILLISECONDS)
+                .getSecrets(GetSecretsRequest.newBuilder().setDatasetPath(DATASET_PATH).build());
+    }
+
+    @Test
+    void thatAShortDeadlineDoesNotFailConcurrentCallersOfTheSameLookup() throws Exception {
+        ListenableFuture<GetSecretsResponse> impatient = getSecrets(100);
+        ListenableFuture<GetSecretsResponse> patient = getSecrets(5000);
+
+        assertThatThrownBy(() -> impatient.get(5, TimeUnit.SECONDS))
+                .isInstanceOf(ExecutionException.class)
+                .satisfies(e -> assertThat(Status.fromThrowable(e.getCause()).getCode()).isEqualTo(Status.Code.DEADLINE_EXCEEDED));
+        assertThat(patient.get(5, TimeUnit.SECONDS).getSecretsList()).isEmpty();
+    }
+}
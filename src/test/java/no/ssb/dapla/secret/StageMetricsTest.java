@@ -0,0 +1,26 @@
+package no.ssb.dapla.secret;
+
+import io.grpc.Status;
+import io.grpc.StatusException;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeoutException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StageMetricsTest {
+
+    @Test
+    void thatOutcomeIsClassifiedFromTheCause() {
+        assertThat(StageMetrics.outcome(null)).isEqualTo(StageMetrics.OK);
+        assertThat(StageMetrics.outcome(new CompletionException(new StatusException(Status.PERMISSION_DENIED)))).isEqualTo(StageMetrics.DENIED);
+        assertThat(StageMetrics.outcome(new StatusException(Status.NOT_FOUND))).isEqualTo(StageMetrics.NOT_FOUND);
+        assertThat(StageMetrics.outcome(new CompletionException(new TimeoutException()))).isEqualTo(StageMetrics.TIMEOUT);
+        assertThat(StageMetrics.outcome(new StatusException(Status.DEADLINE_EXCEEDED))).isEqualTo(StageMetrics.TIMEOUT);
+        assertThat(StageMetrics.outcome(new StatusException(Status.UNAVAILABLE))).isEqualTo(StageMetrics.UNAVAILABLE);
+        assertThat(StageMetrics.outcome(new CompletionException(new CancellationException()))).isEqualTo(StageMetrics.CANCELLED);
+        assertThat(StageMetrics.outcome(new RuntimeException("boom"))).isEqualTo(StageMetrics.ERROR);
+    }
+}
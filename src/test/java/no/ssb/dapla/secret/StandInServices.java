@@ -0,0 +1,109 @@
+package no.ssb.dapla.secret;
+
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import no.ssb.dapla.auth.dataset.protobuf.AccessCheckRequest;
+import no.ssb.dapla.auth.dataset.protobuf.AccessCheckResponse;
+import no.ssb.dapla.auth.dataset.protobuf.AuthServiceGrpc;
+import no.ssb.dapla.catalog.protobuf.CatalogServiceGrpc;
+import no.ssb.dapla.catalog.protobuf.Dataset;
+import no.ssb.dapla.catalog.protobuf.DatasetId;
+import no.ssb.dapla.catalog.protobuf.GetByNameDatasetRequest;
+import no.ssb.dapla.catalog.protobuf.GetByNameDatasetResponse;
+import no.ssb.dapla.catalog.protobuf.MapNameToIdRequest;
+import no.ssb.dapla.catalog.protobuf.MapNameToIdResponse;
+import no.ssb.dapla.catalog.protobuf.PseudoConfig;
+import no.ssb.dapla.catalog.protobuf.SecretPseudoConfigItem;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * In-process stand-ins for the auth and catalog services, with configurable latency, jitter and error rate. Every
+ * dataset path exists in the catalog with a fixed number of secrets, and every user has access.
+ */
+class StandInServices implements AutoCloseable {
+
+    final String serverName = InProcessServerBuilder.generateName();
+
+    private final long latencyMillis;
+    private final long jitterMillis;
+    private final double errorRate;
+    private final int secretsPerDataset;
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4);
+    private final Server server;
+
+    StandInServices(long latencyMillis, long jitterMillis, double errorRate, int secretsPerDataset) throws IOException {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+        this.errorRate = errorRate;
+        this.secretsPerDataset = secretsPerDataset;
+        this.server = InProcessServerBuilder.forName(serverName)
+                .addService(new AuthServiceGrpc.AuthServiceImplBase() {
+                    @Override
+                    public void hasAccess(AccessCheckRequest request, StreamObserver<AccessCheckResponse> responseObserver) {
+                        respond(responseObserver, AccessCheckResponse.newBuilder().setAllowed(true).build());
+                    }
+                })
+                .addService(new CatalogServiceGrpc.CatalogServiceImplBase() {
+                    @Override
+                    public void getByName(GetByNameDatasetRequest request, StreamObserver<GetByNameDatasetResponse> responseObserver) {
+                        respond(responseObserver, GetByNameDatasetResponse.newBuilder().setDataset(dataset(String.join("/", request.getNameList()))).build());
+                    }
+
+                    @Override
+                    public void mapNameToId(MapNameToIdRequest request, StreamObserver<MapNameToIdResponse> responseObserver) {
+                        respond(responseObserver, MapNameToIdResponse.newBuilder().setId(datasetId(String.join("/", request.getNameList()))).build());
+                    }
+                })
+                .build()
+                .start();
+    }
+
+    static String secretId(String datasetPath, int i) {
+        return datasetPath + "/secret-" + i;
+    }
+
+    Dataset dataset(String datasetPath) {
+        return Dataset.newBuilder()
+                .setId(DatasetId.newBuilder().setId(datasetId(datasetPath)))
+                .setState(Dataset.DatasetState.INPUT)
+                .setValuation(Dataset.Valuation.INTERNAL)
+                .setPseudoConfig(PseudoConfig.newBuilder().addAllSecrets(IntStream.range(0, secretsPerDataset)
+                        .mapToObj(i -> SecretPseudoConfigItem.newBuilder().setId(secretId(datasetPath, i)).build())
+                        .collect(Collectors.toList())))
+                .build();
+    }
+
+    static String datasetId(String datasetPath) {
+        return UUID.nameUUIDFromBytes(datasetPath.getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    private <T> void respond(StreamObserver<T> responseObserver, T response) {
+        long delay = latencyMillis + (jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(jitterMillis + 1) : 0);
+        boolean fail = ThreadLocalRandom.current().nextDouble() < errorRate;
+        scheduler.schedule(() -> {
+            if (fail) {
+                responseObserver.onError(Status.UNAVAILABLE.withDescription("Injected failure").asRuntimeException());
+                return;
+            }
+            responseObserver.onNext(response);
+            responseObserver.onCompleted();
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        scheduler.shutdownNow();
+    }
+}